@@ -0,0 +1,95 @@
+package com.yfy.crr;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compare two csv results of jmh (-rf csv), the baseline and a new run.
+ * Prints the change of every score, and fails if a throughput is lower,
+ * or an allocation per op (gc.alloc.rate.norm) is higher, than the
+ * baseline by more than the tolerance.
+ *
+ * BenchCompare baseline.csv result.csv [tolerance, 0.1 by default]
+ */
+public class BenchCompare {
+
+  private static final String ALLOC = "gc.alloc.rate.norm";
+
+  public static void main(String[] args) throws Exception {
+    File baselineFile = new File(args[0]);
+    if (!baselineFile.exists()) {
+      Util.log("No baseline " + baselineFile + ", run jmh and jmhBaseline");
+      System.exit(1);
+    }
+    double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+    Map<String, Double> baseline = read(baselineFile);
+    Map<String, Double> result = read(new File(args[1]));
+
+    int worse = 0;
+    for (Map.Entry<String, Double> e : result.entrySet()) {
+      String name = e.getKey();
+      Double old = baseline.get(name);
+      if (old == null) {
+        Util.log(String.format("%-60s %14.2f  new", name, e.getValue()));
+        continue;
+      }
+      double change = old == 0 ? 0 : (e.getValue() - old) / old;
+      boolean isWorse = name.endsWith(ALLOC) ? change > tolerance :
+          !name.contains(":") && change < -tolerance;
+      if (isWorse) worse++;
+      Util.log(String.format("%-60s %14.2f %14.2f %+7.1f%%%s", name, old,
+          e.getValue(), change * 100, isWorse ? "  WORSE" : ""));
+    }
+    if (worse > 0) {
+      Util.log(worse + " scores worse than the baseline");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Score of each benchmark and of its secondary results, by name and
+   * parameters
+   */
+  private static Map<String, Double> read(File file) throws Exception {
+    List<String> lines = Files.readAllLines(file.toPath(),
+        StandardCharsets.UTF_8);
+    List<String> header = split(lines.get(0));
+    int score = header.indexOf("Score");
+    Map<String, Double> scores = new LinkedHashMap<>();
+    for (String line : lines.subList(1, lines.size())) {
+      if (line.isEmpty()) continue;
+      List<String> values = split(line);
+      StringBuilder name = new StringBuilder(values.get(0));
+      for (int i = 0; i < header.size(); i++)
+        if (header.get(i).startsWith("Param: "))
+          name.append(' ').append(header.get(i).substring(7)).append('=')
+              .append(values.get(i));
+      scores.put(name.toString(), Double.parseDouble(values.get(score)));
+    }
+    return scores;
+  }
+
+  private static List<String> split(String line) {
+    List<String> values = new ArrayList<>();
+    StringBuilder sb = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == ',' && !quoted) {
+        values.add(sb.toString());
+        sb.setLength(0);
+      } else {
+        sb.append(c);
+      }
+    }
+    values.add(sb.toString());
+    return values;
+  }
+}
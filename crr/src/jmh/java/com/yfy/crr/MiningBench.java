@@ -0,0 +1,210 @@
+package com.yfy.crr;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks of the mining hot paths. Inputs are the recorded diffs of
+ * ../svm2/diffmsg and the java files of src/main/java, each call takes
+ * the next one in turn. Run with the gc profiler (gradle jmh) for the
+ * allocation rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MiningBench {
+
+  private static final String DIFF_DIR = "../svm2/diffmsg";
+
+  private static final String JAVA_DIR = "src/main/java";
+
+  // RQ3.add calls of an invocation
+  private static final int ADDS = 1024;
+
+  @State(Scope.Thread)
+  public static class Diffs {
+    List<List<String>> diffs = new ArrayList<>();
+    List<Feature> features = new ArrayList<>();
+    List<DiffBuffer> buffers = new ArrayList<>();
+    GitLogParser parser;
+    FeatureExtractor extractor = new FeatureExtractor(null, null);
+    LineDecoder decoder = new LineDecoder(extractor);
+    int next;
+
+    @Setup
+    public void setup() throws Exception {
+      File[] files = new File(DIFF_DIR).listFiles();
+      Arrays.sort(files);
+      for (File file : files) {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        diffs.add(br.lines().collect(Collectors.toList()));
+        br.close();
+      }
+      parser = new GitLogParser();
+      for (List<String> lines : diffs) {
+        features.add(parser.feature(lines));
+        DiffBuffer diff = new DiffBuffer(8192);
+        diff.write(String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        buffers.add(diff);
+      }
+    }
+
+    int next() {
+      int i = next;
+      next = i + 1 == diffs.size() ? 0 : i + 1;
+      return i;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class JavaFiles {
+    List<Path> paths;
+    List<String> contents = new ArrayList<>();
+    int next;
+
+    @Setup
+    public void setup() throws Exception {
+      try (Stream<Path> s = Files.walk(Paths.get(JAVA_DIR))) {
+        paths = s.filter(p -> p.toString().endsWith(".java"))
+            .sorted().collect(Collectors.toList());
+      }
+      for (Path path : paths)
+        contents.add(new String(Files.readAllBytes(path),
+            StandardCharsets.UTF_8));
+    }
+
+    int next() {
+      int i = next;
+      next = i + 1 == paths.size() ? 0 : i + 1;
+      return i;
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Rq3 {
+    RQ3 rq3;
+    int[] classIds = new int[ADDS];
+    boolean[] adds = new boolean[ADDS];
+    long[] times = new long[ADDS];
+
+    @Setup
+    public void setup() {
+      rq3 = new RQ3();
+      Random random = new Random(10);
+      // 2005 to 2017
+      long from = 1104537600L, to = 1483228800L;
+      for (int i = 0; i < ADDS; i++) {
+        classIds[i] = random.nextInt(ConcurrentKeywords.classList.size());
+        adds[i] = random.nextBoolean();
+        times[i] = from + (long)(random.nextDouble() * (to - from));
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class CountCrrKeyState {
+    CountCrrKey countCrrKey = new CountCrrKey();
+  }
+
+  @State(Scope.Benchmark)
+  public static class ClusterState {
+    Cluster cluster = new Cluster();
+  }
+
+  @State(Scope.Thread)
+  public static class Pairs {
+    Db db;
+    Path dir;
+    String projectsDir;
+    long n;
+
+    @Setup
+    public void setup() throws Exception {
+      projectsDir = Config.projectsDir;
+      dir = Files.createTempDirectory("crr-bench-");
+      Config.projectsDir = dir.toString();
+      db = new Db();
+      db.createTable("bench");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+      db.close();
+      Config.projectsDir = projectsDir;
+      try (Stream<Path> s = Files.walk(dir)) {
+        s.sorted(Comparator.reverseOrder()).map(Path::toFile)
+            .forEach(File::delete);
+      }
+    }
+  }
+
+  /**
+   * Text and code feature of the lines of a diff
+   */
+  @Benchmark
+  public Feature linesFeature(Diffs s) {
+    return s.parser.feature(s.diffs.get(s.next()));
+  }
+
+  /**
+   * Feature of the bytes of a diff, like mining does
+   */
+  @Benchmark
+  public Feature diffFeature(Diffs s) throws Exception {
+    DiffBuffer diff = s.buffers.get(s.next());
+    Feature f = new Feature();
+    if (!diff.tryCount(f)) {
+      s.extractor.begin(f);
+      diff.writeTo(s.decoder);
+      s.decoder.finish();
+      s.extractor.end();
+    }
+    return f;
+  }
+
+  @Benchmark
+  public String featureToStr(Diffs s) {
+    return s.features.get(s.next()).toStr();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ADDS)
+  public RQ3 rq3Add(Rq3 s) {
+    for (int i = 0; i < ADDS; i++)
+      s.rq3.add(s.classIds[i], s.adds[i], s.times[i]);
+    return s.rq3;
+  }
+
+  @Benchmark
+  public void countCrrKeyAnalyze(JavaFiles s, CountCrrKeyState c) {
+    c.countCrrKey.analyze(s.paths.get(s.next()));
+  }
+
+  @Benchmark
+  public Object clusterCount(JavaFiles s, ClusterState c) {
+    return c.cluster.count(s.contents.get(s.next()));
+  }
+
+  /**
+   * A pair of a file and a new version of it, the old files are mostly
+   * stored already like in mining
+   */
+  @Benchmark
+  public void dbAddPairs(JavaFiles s, Pairs p) throws Exception {
+    String file = s.contents.get(s.next());
+    p.db.addPairs("bench", file, file + "\n// " + p.n++);
+  }
+}
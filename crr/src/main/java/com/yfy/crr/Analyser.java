@@ -1,21 +1,25 @@
 package com.yfy.crr;
 
-import ch.uzh.ifi.seal.changedistiller.ChangeDistiller;
+import ch.uzh.ifi.seal.changedistiller.JavaChangeDistillerModule;
 import ch.uzh.ifi.seal.changedistiller.distilling.FileDistiller;
 import ch.uzh.ifi.seal.changedistiller.model.classifiers.java.JavaEntityType;
 import ch.uzh.ifi.seal.changedistiller.model.entities.SourceCodeChange;
 import ch.uzh.ifi.seal.changedistiller.treedifferencing.Node;
 import ch.uzh.ifi.seal.changedistiller.treedifferencing.TreeDifferencer;
 import ch.uzh.ifi.seal.changedistiller.treedifferencing.TreeEditOperation;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.sql.ResultSet;
-import java.util.HashMap;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by yfy on 10/24/16.
@@ -24,32 +28,84 @@ public class Analyser {
 
   private Db db;
 
-  private Map<String, Integer> changeTypeCountMap;
+  private DistillCache cache;
+
+  private ConcurrentHashMap<String, LongAdder> changeTypeCountMap;
+
+  private int threads = 1;
+
+  // distiller and temp files of each thread
+  private ThreadLocal<Worker> worker = ThreadLocal.withInitial(this::newWorker);
+
+  private List<Worker> workers = new CopyOnWriteArrayList<>();
+
+  private static final Metrics.Histogram DISTILL =
+      Metrics.histogram("distill");
+
+  private static final LongAdder PAIRS = Metrics.counter("distill.pairs");
+
+  private static final LongAdder CACHED = Metrics.counter("distill.cached");
+
+  private static final LongAdder FAILED = Metrics.counter("distill.failed");
 
   public Analyser() throws Exception {
     db = new Db();
-    changeTypeCountMap = new HashMap<>();
+    cache = new DistillCache(new File(Config.distillCache),
+        Config.distillCacheBytes);
+    changeTypeCountMap = new ConcurrentHashMap<>();
   }
 
+  /**
+   * Distill pairs on threads, each with its own distiller and temp files
+   */
+  public Analyser setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Metrics go to Config.metricsDir/distill
+   */
   public void compareAll() throws Exception {
-    for (String project : Config.projects) {
-      Util.log(project);
-      ResultSet rs = db.readPair(project);
-      while (rs.next()) {
-        String file1 = rs.getString(1);
-        String file2 = rs.getString(2);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Metrics.start("distill");
+    try {
+      for (String project : Config.projects) {
+        Util.log(project);
+        // workers take the next pair from the stream in turn
+        PairStream pairs = db.pairs(project);
+        try {
+          List<Future<?>> futures = new ArrayList<>();
+          for (int i = 0; i < threads; i++)
+            futures.add(pool.submit(() -> {
+              Worker w = worker.get();
+              while (w.next(pairs))
+                getChange(w);
+              return null;
+            }));
+          for (Future<?> future : futures)
+            future.get();
+        } finally {
+          pairs.close();
+        }
         //getEdit(file1, file2);
-        getChange(file1, file2);
-        //Util.log(file1.length() + " " + file2.length());
-      }
-      rs.close();
 
-      // statistic result
-      for (Map.Entry<String, Integer> e : changeTypeCountMap.entrySet())
-        Util.log(e.getKey() + ' ' + e.getValue());
+        // statistic result
+        for (Map.Entry<String, LongAdder> e : changeTypeCountMap.entrySet())
+          Util.log(e.getKey() + ' ' + e.getValue());
+      }
+    } finally {
+      pool.shutdownNow();
+      for (Worker w : workers)
+        w.close();
+      workers.clear();
+      Util.log(cache.stat());
+      Util.log(db.blobStat());
+      cache.close();
+      Metrics.stop();
     }
     // statistic result
-    for (Map.Entry<String, Integer> e : changeTypeCountMap.entrySet())
+    for (Map.Entry<String, LongAdder> e : changeTypeCountMap.entrySet())
       Util.log(e.getKey() + ' ' + e.getValue());
   }
 
@@ -63,35 +119,147 @@ public class Analyser {
   }
 
   public void getChange(String code1, String code2) throws Exception {
-    BufferedWriter bw = new BufferedWriter(new FileWriter(Config.tmp1), 99999);
-    bw.write(code1);
-    bw.flush();
-    bw = new BufferedWriter(new FileWriter(Config.tmp2), 99999);
-    bw.write(code2);
-    bw.flush();
-
-    File file1 = new File(Config.tmp1);
-    File file2 = new File(Config.tmp2);
-    FileDistiller distiller = ChangeDistiller.createFileDistiller(
-        ChangeDistiller.Language.JAVA);
-    try {
-      distiller.extractClassifiedSourceCodeChanges(file1, file2);
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    List<SourceCodeChange> changes = distiller.getSourceCodeChanges();
-    //Util.log(changes.size());
-    for (SourceCodeChange change : changes) {
-      String label = change.getLabel();
-      Integer count = changeTypeCountMap.get(label);
-      if (count == null)
-        changeTypeCountMap.put(label, 1);
-      else
-        changeTypeCountMap.put(label, count + 1);
-      //Util.log(change.getChangeType().toString());
+    Worker w = worker.get();
+    w.write(new StringReader(code1), new StringReader(code2));
+    getChange(w);
+  }
+
+  /**
+   * Changes of the pair in the files of w
+   */
+  private void getChange(Worker w) throws Exception {
+    byte[] key = DistillCache.key(w.sha1, w.digest1, w.digest2);
+    PAIRS.increment();
+    DistillCache.Result result = cache.get(key);
+    if (result == null) {
+      long start = System.nanoTime();
+      List<SourceCodeChange> changes = w.distill();
+      DISTILL.since(start);
+      //Util.log(changes.size());
+      String[] labels = new String[changes.size()];
+      String[] types = new String[changes.size()];
+      for (int i = 0; i < labels.length; i++) {
+        SourceCodeChange change = changes.get(i);
+        labels[i] = change.getLabel();
+        types[i] = String.valueOf(change.getChangeType());
+        //Util.log(change.getChangeType().toString());
 //      Util.log(change.getLabel());
 //      Util.log(change.getChangedEntity().toString());
 //      Util.log(change.toString());
+      }
+      result = new DistillCache.Result(labels, types);
+      // the partial changes of a failure are counted, not kept for next time
+      if (!w.failed) cache.add(key, result);
+    } else {
+      CACHED.increment();
+    }
+    for (String label : result.labels)
+      changeTypeCountMap.computeIfAbsent(label, k -> new LongAdder())
+          .increment();
+  }
+
+  private Worker newWorker() {
+    try {
+      Worker w = new Worker();
+      workers.add(w);
+      return w;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A FileDistiller keeps the class history of the files it has seen, so
+   * every pair gets a new one from the injector of the thread. Sources
+   * are copied to the files of the thread and hashed on the way.
+   */
+  private static class Worker {
+    private Injector injector;
+    private File file1, file2;
+    private MessageDigest sha1;
+    private byte[] digest1, digest2;
+    // the last distill() threw
+    private boolean failed;
+    private char[] chars = new char[8192];
+    // the sources of the pair, buffers kept for the next pair
+    private CharArrayWriter code1 = new CharArrayWriter(8192),
+        code2 = new CharArrayWriter(8192);
+
+    Worker() throws Exception {
+      sha1 = MessageDigest.getInstance("SHA-1");
+      injector = Guice.createInjector(new JavaChangeDistillerModule());
+      file1 = File.createTempFile("crr-file1-", ".java");
+      file2 = File.createTempFile("crr-file2-", ".java");
+    }
+
+    /**
+     * Copy the next pair of pairs to the files. Only reading the pair is
+     * under the lock of pairs, the files are written after.
+     * @return false at the end
+     */
+    boolean next(PairStream pairs) throws Exception {
+      synchronized (pairs) {
+        if (!pairs.next()) return false;
+        read(pairs.file1(), code1);
+        read(pairs.file2(), code2);
+      }
+      writeFiles();
+      return true;
+    }
+
+    void write(Reader reader1, Reader reader2) throws IOException {
+      read(reader1, code1);
+      read(reader2, code2);
+      writeFiles();
+    }
+
+    private void writeFiles() throws IOException {
+      digest1 = write(file1, code1);
+      digest2 = write(file2, code2);
+    }
+
+    private void read(Reader reader, CharArrayWriter code) throws IOException {
+      code.reset();
+      int n;
+      while ((n = reader.read(chars)) != -1)
+        code.write(chars, 0, n);
+      reader.close();
+    }
+
+    /**
+     * Changes of the files, failed is set if the distiller threw and they
+     * may be partial
+     */
+    List<SourceCodeChange> distill() {
+      FileDistiller distiller = injector.getInstance(FileDistiller.class);
+      failed = false;
+      try {
+        distiller.extractClassifiedSourceCodeChanges(file1, file2);
+      } catch (Exception e) {
+        failed = true;
+        FAILED.increment();
+        Util.log("[Error] distill: " + e);
+      }
+      List<SourceCodeChange> changes = distiller.getSourceCodeChanges();
+      return changes == null ? Collections.emptyList() : changes;
+    }
+
+    /**
+     * @return sha-1 of the utf-8 bytes written
+     */
+    private byte[] write(File file, CharArrayWriter code) throws IOException {
+      sha1.reset();
+      OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+          new FileOutputStream(file)), sha1);
+      Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+      code.writeTo(writer);
+      writer.close();
+      return sha1.digest();
+    }
+
+    void close() {
+      file1.delete();
+      file2.delete();
     }
   }
 
@@ -0,0 +1,223 @@
+package com.yfy.crr;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * File contents stored once by the sha-1 of their utf-8 bytes, deflated,
+ * in the blob table of a database. Pair tables keep the hashes only.
+ *
+ * blob  hash (20 bytes), size (bytes before deflate), data (deflated)
+ */
+public class BlobStore {
+
+  // hashes added lately, most neighbouring commits share content
+  private static final int RECENT_HASHES = 1 << 16;
+
+  private Connection conn;
+
+  private PreparedStatement insertPs, selectPs;
+
+  private int batch;
+
+  private long batchBytes;
+
+  private MessageDigest sha1;
+
+  private Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+  private Map<Key, Boolean> recent = new LinkedHashMap<Key, Boolean>(
+      1024, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+      return size() > RECENT_HASHES;
+    }
+  };
+
+  // inflated contents read lately, bounded by cacheBytes
+  private LinkedHashMap<Key, byte[]> cache =
+      new LinkedHashMap<>(1024, 0.75f, true);
+
+  private long cacheBytes, maxCacheBytes;
+
+  private int hits, misses;
+
+  public BlobStore(Connection conn, long maxCacheBytes) throws Exception {
+    this.conn = conn;
+    this.maxCacheBytes = maxCacheBytes;
+    sha1 = MessageDigest.getInstance("SHA-1");
+    Statement sm = conn.createStatement();
+    sm.execute("create table if not exists blob " +
+        "(hash blob primary key, size integer, data blob);");
+    sm.close();
+  }
+
+  /**
+   * Add content unless stored, rows are sent on flush
+   * @return hash of content
+   */
+  public byte[] add(String content) throws Exception {
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    byte[] hash = sha1.digest(bytes);
+    Key key = new Key(hash);
+    if (recent.put(key, Boolean.TRUE) != null) return hash;
+    if (insertPs == null)
+      insertPs = conn.prepareStatement(
+          "insert or ignore into blob values(?, ?, ?);");
+    byte[] data = deflate(bytes);
+    insertPs.setBytes(1, hash);
+    insertPs.setInt(2, bytes.length);
+    insertPs.setBytes(3, data);
+    insertPs.addBatch();
+    batch++;
+    batchBytes += data.length;
+    return hash;
+  }
+
+  /**
+   * Bytes of the rows not sent yet
+   */
+  public long batchBytes() {
+    return batchBytes;
+  }
+
+  /**
+   * Send the added rows, the caller commits
+   */
+  public void flush() throws Exception {
+    if (batch > 0) insertPs.executeBatch();
+    batch = 0;
+    batchBytes = 0;
+  }
+
+  /**
+   * Content of hash, inflated when first read
+   */
+  public Reader reader(byte[] hash) throws Exception {
+    return new InputStreamReader(new ByteArrayInputStream(bytes(hash)),
+        StandardCharsets.UTF_8);
+  }
+
+  public byte[] bytes(byte[] hash) throws Exception {
+    Key key = new Key(hash);
+    byte[] bytes = cache.get(key);
+    if (bytes != null) {
+      hits++;
+      return bytes;
+    }
+    misses++;
+    if (selectPs == null)
+      selectPs = conn.prepareStatement(
+          "select size, data from blob where hash=?;");
+    selectPs.setBytes(1, hash);
+    ResultSet rs = selectPs.executeQuery();
+    try {
+      if (!rs.next())
+        throw new IllegalStateException("No blob " + key);
+      bytes = inflate(rs.getBytes(2), rs.getInt(1));
+    } finally {
+      rs.close();
+    }
+    cache.put(key, bytes);
+    cacheBytes += bytes.length;
+    Iterator<byte[]> it = cache.values().iterator();
+    while (cacheBytes > maxCacheBytes && it.hasNext()) {
+      cacheBytes -= it.next().length;
+      it.remove();
+    }
+    return bytes;
+  }
+
+  /**
+   * Delete the blobs none of tables refers to, after a pair table is
+   * dropped. tables are all the pair tables, with hash1 and hash2.
+   * @return number of blobs deleted
+   */
+  public int gc(List<String> tables) throws Exception {
+    flush();
+    Statement sm = conn.createStatement();
+    StringBuilder sql = new StringBuilder("delete from blob");
+    for (int i = 0; i < tables.size(); i++)
+      sql.append(i == 0 ? " where hash not in (" : " union ")
+          .append("select hash1 from ").append(tables.get(i))
+          .append(" union select hash2 from ").append(tables.get(i));
+    if (!tables.isEmpty()) sql.append(')');
+    int deleted = sm.executeUpdate(sql.append(';').toString());
+    sm.close();
+    // a deleted hash must be inserted again when added
+    recent.clear();
+    cache.clear();
+    cacheBytes = 0;
+    return deleted;
+  }
+
+  public String stat() {
+    return "blob cache: " + cache.size() + " blobs, " + (cacheBytes >> 10) +
+        " KB, " + hits + " hits, " + misses + " misses";
+  }
+
+  public void close() throws Exception {
+    flush();
+    if (insertPs != null) insertPs.close();
+    if (selectPs != null) selectPs.close();
+    deflater.end();
+  }
+
+  private byte[] deflate(byte[] bytes) throws IOException {
+    deflater.reset();
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+    DeflaterOutputStream dos = new DeflaterOutputStream(out, deflater);
+    dos.write(bytes);
+    dos.finish();
+    return out.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] data, int size) throws IOException {
+    byte[] bytes = new byte[size];
+    DataInputStream in = new DataInputStream(
+        new InflaterInputStream(new ByteArrayInputStream(data)));
+    in.readFully(bytes);
+    in.close();
+    return bytes;
+  }
+
+  private static class Key {
+    private final byte[] hash;
+    private final int hashCode;
+
+    Key(byte[] hash) {
+      this.hash = hash;
+      hashCode = Arrays.hashCode(hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(hash, ((Key) o).hash);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : hash) sb.append(String.format("%02x", b));
+      return sb.toString();
+    }
+  }
+}
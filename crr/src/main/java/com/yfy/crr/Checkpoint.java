@@ -0,0 +1,194 @@
+package com.yfy.crr;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.BiConsumer;
+
+/**
+ * Mining state of a project kept between runs: the head of the last run,
+ * the feature of every mined commit and the rq3 counts of the project.
+ *
+ * dir/head      commit id, row count of features, row count of the
+ *               FeatureStore and generation of rq3
+ * dir/features  rows of (commit id, commit time, feature)
+ * dir/rq3.n/    RQ3.print(dir) of generation n
+ *
+ * Moving the head file is the only commit of a run. Rows after the row
+ * counts of head are cut off on the next run, and rq3 of a new generation
+ * is only used once head names it, so a run that fails before has no
+ * effect. A run that is not incremental deletes head before it rewrites
+ * the FeatureStore, and saves a new one after.
+ */
+public class Checkpoint {
+
+  // 20 bytes commit id, commit time, 12 feature ints
+  private static final int ROW_SIZE = 20 + 4 + 12 * 4;
+
+  private File dir;
+
+  private ObjectId lastSeen;
+
+  private int rows;
+
+  // rows of the FeatureStore of the project at the head
+  private int storeRows;
+
+  // rq3.generation, 0 for none
+  private int generation;
+
+  // rows mined in this run
+  private ByteArrayOutputStream pending;
+
+  private DataOutputStream pendingOut;
+
+  private int pendingRows;
+
+  public Checkpoint(String project) throws Exception {
+    dir = new File(Config.checkpointDir, project);
+    pending = new ByteArrayOutputStream();
+    pendingOut = new DataOutputStream(pending);
+    File head = new File(dir, "head");
+    if (head.exists()) {
+      String[] strs = new String(Files.readAllBytes(head.toPath()),
+          StandardCharsets.UTF_8).trim().split(" ");
+      if (strs.length < 4) {
+        Util.log(project + ": checkpoint of an older format, mine all again");
+        return;
+      }
+      lastSeen = ObjectId.fromString(strs[0]);
+      rows = Integer.parseInt(strs[1]);
+      storeRows = Integer.parseInt(strs[2]);
+      generation = Integer.parseInt(strs[3]);
+    }
+  }
+
+  /**
+   * Forget the last run if its head is no longer in the history of head,
+   * after a force push or a rewrite, so the project is mined again in full
+   * @return if the last run is forgotten
+   */
+  public boolean check(Repository repo, ObjectId head) throws Exception {
+    if (lastSeen == null) return false;
+    if (repo.getObjectDatabase().has(lastSeen)) {
+      try (RevWalk walk = new RevWalk(repo)) {
+        if (walk.isMergedInto(walk.parseCommit(lastSeen),
+            walk.parseCommit(head)))
+          return false;
+      }
+    }
+    Util.log(dir.getName() + ": " + lastSeen.name() +
+        " of the last run is not in the history, mine all again");
+    lastSeen = null;
+    rows = storeRows = 0;
+    generation = 0;
+    return true;
+  }
+
+  /**
+   * Forget the last run, for a run that mines the project in full. head
+   * is deleted now, a FeatureStore written after is never cut to its rows.
+   */
+  public void reset() throws Exception {
+    Files.deleteIfExists(new File(dir, "head").toPath());
+    delete(rq3Dir(generation));
+    lastSeen = null;
+    rows = storeRows = 0;
+    generation = 0;
+  }
+
+  /**
+   * Head of the last run, null if the project was never mined
+   */
+  public ObjectId lastSeen() {
+    return lastSeen;
+  }
+
+  public void add(RevCommit commit, Feature feature) throws Exception {
+    byte[] id = new byte[20];
+    commit.getId().copyRawTo(id, 0);
+    pendingOut.write(id);
+    pendingOut.writeInt(commit.getCommitTime());
+    feature.write(pendingOut);
+    pendingRows++;
+  }
+
+  /**
+   * Rows of the FeatureStore of the project at the head of the last run
+   */
+  public int storeRows() {
+    return storeRows;
+  }
+
+  /**
+   * Commit time and feature of every saved row
+   */
+  public void forEach(BiConsumer<Integer, Feature> consumer) throws Exception {
+    if (rows == 0) return;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(new File(dir, "features"))));
+    for (int i = 0; i < rows; i++) {
+      in.skipBytes(20);
+      int time = in.readInt();
+      consumer.accept(time, Feature.read(in));
+    }
+    in.close();
+  }
+
+  public RQ3 rq3() throws Exception {
+    if (generation == 0) return new RQ3();
+    return RQ3.load(rq3Dir(generation).getPath());
+  }
+
+  /**
+   * Append the rows of this run and write rq3 as a new generation, then
+   * move the head. The FeatureStore of the project, of storeRows rows, is
+   * saved before.
+   */
+  public void save(ObjectId head, RQ3 rq3, int storeRows) throws Exception {
+    dir.mkdirs();
+    RandomAccessFile raf = new RandomAccessFile(new File(dir, "features"), "rw");
+    raf.setLength((long) rows * ROW_SIZE);
+    raf.seek(raf.length());
+    raf.write(pending.toByteArray());
+    raf.close();
+    File rq3Dir = rq3Dir(generation + 1);
+    delete(rq3Dir);
+    rq3Dir.mkdirs();
+    rq3.print(rq3Dir.getPath());
+
+    File tmp = new File(dir, "head.tmp");
+    PrintWriter pw = new PrintWriter(tmp);
+    pw.println(head.name() + ' ' + (rows + pendingRows) + ' ' + storeRows +
+        ' ' + (generation + 1));
+    pw.close();
+    Files.move(tmp.toPath(), new File(dir, "head").toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    delete(rq3Dir(generation));
+    rows += pendingRows;
+    this.storeRows = storeRows;
+    generation++;
+    lastSeen = head;
+    pending.reset();
+    pendingRows = 0;
+  }
+
+  private File rq3Dir(int generation) {
+    return new File(dir, "rq3." + generation);
+  }
+
+  private static void delete(File rq3Dir) {
+    File[] files = rq3Dir.listFiles();
+    if (files == null) return;
+    for (File file : files)
+      file.delete();
+    rq3Dir.delete();
+  }
+}
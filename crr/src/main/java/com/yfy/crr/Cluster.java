@@ -1,90 +1,241 @@
 package com.yfy.crr;
 
-import org.apache.commons.lang3.StringUtils;
-import weka.clusterers.SimpleKMeans;
-import weka.core.Instances;
-import weka.core.converters.ArffLoader;
-
-import java.io.File;
-import java.io.PrintWriter;
-import java.sql.ResultSet;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by yfy on 11/5/16.
  */
 public class Cluster {
 
-  private List<double[]> tfidfs;
+  private List<String> keyList = ConcurrentKeywords.list;
 
+  private SubstringMatcher matcher = new SubstringMatcher(keyList);
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  // k of each clustering
+  private int[] ks = {10, 20, 30};
+
+  private static final Metrics.Histogram COUNT =
+      Metrics.histogram("cluster.count");
+
+  private static final Metrics.Histogram KMEANS =
+      Metrics.histogram("cluster.kmeans");
+
+  private static final LongAdder FILES = Metrics.counter("cluster.files");
+
+  private static final LongAdder CHARS = Metrics.counter("cluster.chars");
+
+  // key counts of each thread
+  private ThreadLocal<int[]> keyCounts =
+      ThreadLocal.withInitial(() -> new int[keyList.size()]);
+
+  public Cluster setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Cluster with each k, the result of k goes to km<k>
+   */
+  public Cluster setKs(int... ks) {
+    this.ks = ks;
+    return this;
+  }
+
+  /**
+   * Metrics go to Config.metricsDir/cluster
+   */
   public void run() throws Exception {
-    //tfidf();
-    kmeans();
+    Metrics.start("cluster");
+    try {
+      //tfidf();
+      kmeans();
+    } finally {
+      Metrics.stop();
+    }
   }
 
+  /**
+   * Files are tokenized once on a pool, in a window of futures so that
+   * the rows stay in order. Term counts go to a temp file, tf-idf is
+   * computed from it when the document frequencies are known. Memory
+   * does not grow with the number of files.
+   *
+   * tfidf.arff  sparse arff
+   * tfidf.bin   SparseMatrix
+   */
   private void tfidf() throws Exception {
     // how many files each key occurs
-    int[] keyFileNums = new int[ConcurrentKeywords.list.size()];
+    int[] keyFileNums = new int[keyList.size()];
 
     // tf
     int fileCount = 0;
-    List<String> keyList = ConcurrentKeywords.list;
-    List<double[]> tfs = new ArrayList<>();
-    ResultSet rs = new MysqlDb().readFile1();
-    while (rs.next()) {  // for each file
-      fileCount++;
-      String file = rs.getString(1);
-      int wordCount = file.split("\\s").length;
-      //Util.log(wordCount);
-      double[] tf = new double[keyList.size()];
-      for (int i = 0; i < keyList.size(); i++) {
-        int keyCount = StringUtils.countMatches(file, keyList.get(i));
-        tf[i] = keyCount / (double)wordCount;
-        if (keyCount > 0)
-          keyFileNums[i]++;
+    File tfFile = File.createTempFile("crr-tf-", ".bin");
+    try {
+      DataOutputStream tfOut = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(tfFile)));
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      Deque<Future<TermCounts>> window = new ArrayDeque<>();
+      try {
+        PairStream files = new MysqlDb().readFile1();
+        while (files.next()) {  // for each file
+          fileCount++;
+          String file = files.string(1);
+          if (window.size() == threads * 4)
+            window.poll().get().write(tfOut, keyFileNums);
+          window.add(pool.submit(() -> count(file)));
+        }
+        files.close();
+        while (!window.isEmpty())
+          window.poll().get().write(tfOut, keyFileNums);
+      } finally {
+        pool.shutdownNow();
+        tfOut.close();
       }
-      tfs.add(tf);
-      //Util.log(Arrays.toString(tf));
-    }
 
-    // idf
-    for (double[] tf : tfs) {
-      for (int i = 0; i < tf.length; i++) {
-        tf[i] *= Math.log(fileCount / (double)(keyFileNums[i] + 1));
+      // idf
+      double[] idf = new double[keyList.size()];
+      for (int i = 0; i < idf.length; i++)
+        idf[i] = Math.log(fileCount / (double)(keyFileNums[i] + 1));
+
+      // write arff
+      PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(
+          Config.projectsDir + '/' + "tfidf.arff")));
+      pw.println("@relation tfidf\n");
+      for (int i = 0; i < keyList.size(); i++)
+        pw.println("@attribute t" + i + " numeric");
+      pw.println();
+      pw.println("@data");
+      DataInputStream tfIn = new DataInputStream(new BufferedInputStream(
+          new FileInputStream(tfFile)));
+      DataOutputStream binOut = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(Config.projectsDir + '/' + "tfidf.bin")));
+      SparseMatrix.writeHeader(binOut, fileCount, keyList.size());
+      StringBuilder sb = new StringBuilder();
+      double[] tfidfs = new double[keyList.size()];
+      for (int f = 0; f < fileCount; f++) {
+        TermCounts tc = TermCounts.read(tfIn);
+        sb.setLength(0);
+        sb.append('{');
+        for (int j = 0; j < tc.keys.length; j++) {
+          int i = tc.keys[j];
+          double tfidf = tc.counts[j] / (double)tc.wordCount;
+          tfidf *= idf[i];
+          tfidfs[j] = tfidf;
+          if (j > 0) sb.append(',');
+          sb.append(i).append(' ').append(tfidf);
+        }
+        sb.append('}');
+        pw.println(sb);
+        SparseMatrix.writeRow(binOut, tc.keys, tfidfs, tc.keys.length);
       }
-      //Util.log(Arrays.toString(tf));
+      tfIn.close();
+      binOut.close();
+      pw.close();
+    } finally {
+      tfFile.delete();
     }
-    tfidfs = tfs;
-
-    // write arff
-    PrintWriter pw = new PrintWriter(Config.projectsDir + '/' + "tfidf.arff");
-    pw.println("@relation tfidf\n");
-    for (int i = 0; i < keyList.size(); i++)
-      pw.println("@attribute t" + i + " numeric");
-    pw.println();
-    pw.println("@data");
-    for (double[] tfidf : tfidfs) {
-      pw.print(tfidf[0]);
-      for (int i = 1; i < tfidf.length; i++)
-        pw.print("," + tfidf[i]);
-      pw.println();
+  }
+
+  /**
+   * Count the words (like split("\\s")) and every key of file in one pass
+   */
+  TermCounts count(String file) {
+    long start = System.nanoTime();
+    int[] counts = keyCounts.get();
+    SubstringMatcher m = matcher;
+    int state = m.start();
+    int spaces = 0, spacesToLastWord = -1;
+    for (int i = 0, n = file.length(); i < n; i++) {
+      char c = file.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' ||
+          c == '\r') {
+        spaces++;
+      } else {
+        spacesToLastWord = spaces;
+      }
+      state = m.next(state, c);
+      int[] outputs = m.outputs(state);
+      if (outputs != null)
+        for (int key : outputs) counts[key]++;
     }
-    pw.close();
+    // split drops trailing empty words, and gives [""] for ""
+    int wordCount = file.isEmpty() ? 1 : spacesToLastWord + 1;
+
+    int nonZero = 0;
+    for (int count : counts)
+      if (count > 0) nonZero++;
+    TermCounts tc = new TermCounts(wordCount, nonZero);
+    for (int i = 0, j = 0; i < counts.length; i++)
+      if (counts[i] > 0) {
+        tc.keys[j] = i;
+        tc.counts[j++] = counts[i];
+        counts[i] = 0;
+      }
+    FILES.increment();
+    CHARS.add(file.length());
+    COUNT.since(start);
+    return tc;
   }
 
-  private void kmeans() throws Exception {
-    File file = new File(Config.projectsDir + "/tfidf.arff");
-    ArffLoader loader = new ArffLoader();
-    loader.setFile(file);
-    Instances ins = loader.getDataSet();
+  /**
+   * Sparse key counts of a file
+   */
+  static class TermCounts {
+    int wordCount;
+    int[] keys, counts;
+
+    TermCounts(int wordCount, int nonZero) {
+      this.wordCount = wordCount;
+      keys = new int[nonZero];
+      counts = new int[nonZero];
+    }
 
-    SimpleKMeans km = new SimpleKMeans();
-    km.setNumClusters(10);
-    km.buildClusterer(ins);
-    Util.log(km);
+    void write(DataOutput out, int[] keyFileNums) throws IOException {
+      out.writeInt(wordCount);
+      out.writeInt(keys.length);
+      for (int j = 0; j < keys.length; j++) {
+        out.writeInt(keys[j]);
+        out.writeInt(counts[j]);
+        keyFileNums[keys[j]]++;
+      }
+    }
+
+    static TermCounts read(DataInput in) throws IOException {
+      int wordCount = in.readInt();
+      TermCounts tc = new TermCounts(wordCount, in.readInt());
+      for (int j = 0; j < tc.keys.length; j++) {
+        tc.keys[j] = in.readInt();
+        tc.counts[j] = in.readInt();
+      }
+      return tc;
+    }
+  }
 
+  /**
+   * Mini-batch k-means of the tf-idf vectors for each k
+   */
+  private void kmeans() throws Exception {
+    SparseMatrix data = SparseMatrix.load(
+        new File(Config.projectsDir + "/tfidf.bin"));
+    for (int k : ks) {
+      long start = System.nanoTime();
+      MiniBatchKMeans km = new MiniBatchKMeans(k).setThreads(threads)
+          .fit(data);
+      KMEANS.since(start);
+      PrintWriter pw = new PrintWriter(Config.projectsDir + "/km" + k);
+      km.print(pw, data);
+      pw.close();
+      Util.log("km" + k + ' ' + (System.nanoTime() - start) / 1000000 + "ms");
+    }
   }
 
 }
@@ -0,0 +1,99 @@
+package com.yfy.crr;
+
+import weka.classifiers.functions.SMO;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SelectedTag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SVM of concurrency related commits, trained in process instead of with
+ * svm-scale and svm-train. Features are scaled to [-1, 1] with the range
+ * of the training set like svm-scale, the kernel is rbf with gamma
+ * 1 / feature count like the default of libsvm.
+ */
+public class CommitClassifier {
+
+  private static final int FEATURES = 12;
+
+  private static final double LOWER = -1, UPPER = 1;
+
+  private double[] min, max;
+
+  private Instances header;
+
+  private SMO smo;
+
+  /**
+   * @param labels 1 for concurrency related, 0 for not
+   */
+  public CommitClassifier(List<Feature> features, List<Integer> labels)
+      throws Exception {
+    min = new double[FEATURES];
+    max = new double[FEATURES];
+    Arrays.fill(min, Double.MAX_VALUE);
+    Arrays.fill(max, -Double.MAX_VALUE);
+    for (Feature f : features) {
+      double[] values = values(f);
+      for (int i = 0; i < FEATURES; i++) {
+        min[i] = Math.min(min[i], values[i]);
+        max[i] = Math.max(max[i], values[i]);
+      }
+    }
+
+    ArrayList<Attribute> attributes = new ArrayList<>();
+    for (int i = 1; i <= FEATURES; i++)
+      attributes.add(new Attribute(String.valueOf(i)));
+    attributes.add(new Attribute("label", Arrays.asList("0", "1")));
+    header = new Instances("commit", attributes, 0);
+    header.setClassIndex(FEATURES);
+
+    Instances data = new Instances("commit", attributes, features.size());
+    data.setClassIndex(FEATURES);
+    for (int i = 0; i < features.size(); i++)
+      data.add(instance(features.get(i), labels.get(i)));
+
+    smo = new SMO();
+    RBFKernel kernel = new RBFKernel();
+    kernel.setGamma(1.0 / FEATURES);
+    smo.setKernel(kernel);
+    smo.setC(1);
+    // already scaled
+    smo.setFilterType(new SelectedTag(SMO.FILTER_NONE, SMO.TAGS_FILTER));
+    smo.buildClassifier(data);
+  }
+
+  /**
+   * If the commit is predicted concurrency related. The filters of SMO
+   * keep state, so calls are serialized.
+   */
+  public synchronized boolean predict(Feature f) throws Exception {
+    Instance instance = instance(f, 0);
+    instance.setDataset(header);
+    return smo.classifyInstance(instance) == 1;
+  }
+
+  private Instance instance(Feature f, int label) {
+    double[] values = values(f);
+    double[] scaled = new double[FEATURES + 1];
+    for (int i = 0; i < FEATURES; i++)
+      // svm-scale leaves out a feature of one value
+      if (max[i] > min[i])
+        scaled[i] = LOWER + (UPPER - LOWER) *
+            (values[i] - min[i]) / (max[i] - min[i]);
+    scaled[FEATURES] = label;
+    return new DenseInstance(1, scaled);
+  }
+
+  private static double[] values(Feature f) {
+    return new double[]{f.msgKey, f.file, f.hunk, f.lineAdd, f.lineRemove,
+        f.lineSub, f.lineSum, f.keyAdd, f.keyRemove, f.keySub, f.keySum,
+        f.contextKey};
+  }
+}
@@ -186,4 +186,6 @@ public class ConcurrentKeywords {
       "WriteLock",
       "StampedLock"
   );
+
+  public static KeywordMatcher matcher = new KeywordMatcher(list, classList);
 }
@@ -1,7 +1,9 @@
 package com.yfy.crr;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by yfy on 10/22/16.
@@ -14,6 +16,50 @@ public class Config {
 
   public static String tmp2 = projectsDir + "/tmp2";
 
+  // batched inserts are sent as multi-row statements
+  public static String mysqlUrl =
+      "jdbc:mysql://localhost/crr?user=root&rewriteBatchedStatements=true";
+
+  // last mined commit and cached features of each project
+  public static String checkpointDir = projectsDir + "/checkpoint";
+
+  // related commits of each project, FeatureStore
+  public static String featureDir = "../svm2/features";
+
+  // inflated blobs of pairs.db kept in memory
+  public static long blobCacheBytes = 64L << 20;
+
+  // bytes of "git show" of a commit kept before its Feature, a larger
+  // diff is extracted as it is read, see DiffBuffer
+  public static int diffBufferBytes = 1 << 20;
+
+  // changes distilled from pairs, by content hash of the pair
+  public static String distillCache = projectsDir + "/distill-cache";
+
+  public static long distillCacheBytes = 512L << 20;
+
+  // how JGit reads packs when mining, see PackProfile
+  public static PackProfile packProfile = new PackProfile();
+
+  // profiles of projects by name, the pipeline mines the projects next
+  // to each other with the same profile at the same time
+  public static Map<String, PackProfile> packProfiles =
+      Collections.singletonMap("lucene-solr",
+          new PackProfile().setLimit(1L << 30));
+
+  // globs of the java files mined, like "src/main/**", all if empty. Both
+  // diff modes apply them, but git show pairs renames only among the
+  // mined files, so a file renamed into them is an added one there.
+  public static List<String> diffIncludes = Collections.emptyList();
+
+  // globs of the java files not mined, like "src/test/**"
+  public static List<String> diffExcludes = Collections.emptyList();
+
+  // Metrics of each run, reported every metricsSeconds
+  public static String metricsDir = projectsDir + "/metrics";
+
+  public static long metricsSeconds = 60;
+
   public static List<String> projects = Arrays.asList("hadoop", "flink",
       "tomcat", "mahout", "cassandra", "lucene-solr", "netty", "guava");
 
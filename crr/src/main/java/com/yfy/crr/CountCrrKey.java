@@ -1,50 +1,147 @@
 package com.yfy.crr;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Created by yfy on 2017/4/1.
+ * Lines of the java files under projectsDir that contain each class
+ * keyword. Files are scanned on a ForkJoinPool, as bytes, with all the
+ * keywords matched in one pass.
  */
 public class CountCrrKey {
-  private Map<String, Integer> map;
-  private int sum;
+  // files from this size are memory mapped, smaller ones are read
+  private static final int MAP_SIZE = 1 << 16;
+
+  private List<String> keys = ConcurrentKeywords.classList;
+
+  private SubstringMatcher matcher = new SubstringMatcher(keys);
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private List<Counter> counters = new CopyOnWriteArrayList<>();
+
+  private ThreadLocal<Counter> counter = ThreadLocal.withInitial(() -> {
+    Counter c = new Counter(keys.size());
+    counters.add(c);
+    return c;
+  });
 
   public CountCrrKey() {}
 
+  public CountCrrKey setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
   public void count() throws Exception {
-    map = new HashMap<>();
-    File root = new File(Config.projectsDir);
-    dfs(root);
-    for (String key : map.keySet())
-      Util.log(key + " " + map.get(key));
+    counters.clear();
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(Paths.get(Config.projectsDir))) {
+      files = paths.filter(p -> p.toString().endsWith(".java") &&
+          Files.isRegularFile(p)).collect(Collectors.toList());
+    }
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.submit(() -> files.parallelStream().forEach(this::analyze)).get();
+    } finally {
+      pool.shutdown();
+    }
+
+    long[] counts = new long[keys.size()];
+    for (Counter c : counters)
+      for (int i = 0; i < counts.length; i++)
+        counts[i] += c.counts[i];
+    long sum = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) continue;
+      Util.log(keys.get(i) + " " + counts[i]);
+      sum += counts[i];
+    }
     Util.log(sum);
   }
 
-  private void dfs(File root) throws Exception {
-    File[] files = root.listFiles();
-    for (File file : files) {
-      if (file.isDirectory())
-        dfs(file);
-      else if (file.getName().endsWith(".java"))
-        analyze(file);
+  void analyze(Path file) {
+    Counter c = counter.get();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      c.begin();
+      if (size >= MAP_SIZE) {
+        c.scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+      } else {
+        ByteBuffer buf = c.buffer;
+        buf.clear();
+        while (channel.read(buf) > 0)
+          if (!buf.hasRemaining()) {
+            buf.flip();
+            c.scan(buf);
+            buf.clear();
+          }
+        buf.flip();
+        c.scan(buf);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
   }
 
-  private void analyze(File file) throws Exception {
-    //Util.log(file.getAbsolutePath());
-    BufferedReader br = new BufferedReader(new FileReader(file));
-    String line;
-    while ((line = br.readLine()) != null) {
-      for (String key : ConcurrentKeywords.classList) {
-        if (line.contains(key)) {
-          map.put(key, map.getOrDefault(key, 0) + 1);
-          sum++;
+  /**
+   * Counts of one thread. A key is counted once per line, like
+   * line.contains(key) on the lines of BufferedReader.
+   */
+  private class Counter {
+    long[] counts;
+
+    // line of the last count of each key
+    long[] countedLine;
+
+    long line;
+
+    int state;
+
+    ByteBuffer buffer = ByteBuffer.allocate(MAP_SIZE);
+
+    Counter(int keys) {
+      counts = new long[keys];
+      countedLine = new long[keys];
+    }
+
+    void begin() {
+      state = matcher.start();
+      line++;
+    }
+
+    void scan(ByteBuffer buf) {
+      SubstringMatcher m = matcher;
+      int s = state;
+      for (int i = buf.position(), n = buf.limit(); i < n; i++) {
+        byte b = buf.get(i);
+        if (b == '\n' || b == '\r') {
+          s = m.start();
+          line++;
+          continue;
         }
+        s = m.next(s, b);
+        int[] outputs = m.outputs(s);
+        if (outputs != null)
+          for (int key : outputs)
+            if (countedLine[key] != line) {
+              countedLine[key] = line;
+              counts[key]++;
+            }
       }
+      state = s;
     }
   }
 }
@@ -2,109 +2,414 @@ package com.yfy.crr;
 
 import java.io.Reader;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Created by yfy on 10/22/16.
+ * Pairs of (file1, file2) of each project. A pair table holds the hashes
+ * of the two files, the contents are in the BlobStore. Pair tables are
+ * listed in pair_table. Tables of (file1 text, file2 text) of an older
+ * pairs.db are moved to the BlobStore when it is opened.
  */
 public class Db {
 
+  // commit pairs after so many rows, blob bytes or milliseconds
+  private static final int COMMIT_ROWS = 1000;
+
+  private static final long COMMIT_BYTES = 64 << 20;
+
+  private static final long COMMIT_MILLIS = 10000;
+
+  // rows read at a time
+  private static final int FETCH_ROWS = 500;
+
+  // moveToMysql
+  private static final int QUEUE_ROWS = 1024, BATCH_ROWS = 1000;
+
+  private static final long REPORT_MILLIS = 10000;
+
+  // suffix of the pair table a (file1, file2) table is moved to
+  private static final String MIGRATING = "_migrating";
+
   private Connection conn;
 
   private int smCount;
 
+  // cached insert statement of each table, with rows not executed yet
+  private Map<String, PreparedStatement> insertMap;
+
+  private Map<String, Integer> batchMap;
+
+  private long lastCommit;
+
+  private BlobStore blobs;
+
+  // sqlite set for a bulk load, from createTable or addPairs to commit
+  private boolean bulkLoad;
+
+  private static final Metrics.Histogram INSERT =
+      Metrics.histogram("db.insert");
+
+  private static final Metrics.Histogram FLUSH = Metrics.histogram("db.flush");
+
   public Db() throws Exception {
     String dbFile = Config.projectsDir + '/' + "pairs.db";
     conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+    // journal mode can not change inside a transaction
+    Statement sm = conn.createStatement();
+    sm.execute("pragma journal_mode=WAL;");
+    sm.execute("pragma synchronous=NORMAL;");
+    sm.close();
+    blobs = new BlobStore(conn, Config.blobCacheBytes);
     conn.setAutoCommit(false);
+    insertMap = new HashMap<>();
+    batchMap = new HashMap<>();
+    lastCommit = System.currentTimeMillis();
+    migrate();
     //stmt = conn.createStatement();
     //stmt.setFetchSize(200);
   }
 
   public void createTable(String name) throws Exception {
+    flush();
+    setBulkLoad(true);
+    PreparedStatement ps = insertMap.remove(name);
+    if (ps != null) ps.close();
     Statement sm = conn.createStatement();
     String sql = "drop table " + name;
+    boolean dropped = false;
     try {
       sm.execute(sql);
+      dropped = true;
     } catch (Exception e) {}
-    sql = "create table " + name + " (file1 text, file2 text);";
+    sql = "create table " + name + " (hash1 blob, hash2 blob);";
     sm.execute(sql);
     sm.close();
+    addPairTable(name);
+    // blobs only the old rows of name referred to
+    if (dropped)
+      Util.log(name + " recreated, " + blobs.gc(pairTables()) +
+          " blobs deleted");
     conn.commit();
   }
 
-  public void addPairs(String table, String file1, String file2)
-      throws Exception {
-    String sql = "insert into " + table + " values(?, ?);";
-    PreparedStatement ps = conn.prepareStatement(sql);
-    ps.setString(1, file1);
-    ps.setString(2, file2);
+  /**
+   * Names of the pair tables
+   */
+  public List<String> pairTables() throws Exception {
+    List<String> tables = new ArrayList<>();
+    Statement sm = conn.createStatement();
+    ResultSet rs = sm.executeQuery("select name from pair_table;");
+    while (rs.next()) tables.add(rs.getString(1));
+    rs.close();
+    sm.close();
+    return tables;
+  }
+
+  private void addPairTable(String name) throws Exception {
+    PreparedStatement ps = conn.prepareStatement(
+        "insert or ignore into pair_table values(?);");
+    ps.setString(1, name);
     ps.execute();
     ps.close();
+  }
+
+  /**
+   * List the pair tables not in pair_table yet, and move the rows of the
+   * (file1, file2) ones to the BlobStore, once for a pairs.db
+   */
+  private void migrate() throws Exception {
+    Statement sm = conn.createStatement();
+    sm.execute("create table if not exists pair_table " +
+        "(name text primary key);");
+    List<String> tables = new ArrayList<>();
+    ResultSet rs = sm.executeQuery("select name from sqlite_master " +
+        "where type='table' and name not in ('blob', 'pair_table') " +
+        "and name not in (select name from pair_table);");
+    while (rs.next()) tables.add(rs.getString(1));
+    rs.close();
+    Map<String, List<String>> columns = new HashMap<>();
+    for (String table : tables) {
+      List<String> names = new ArrayList<>();
+      rs = sm.executeQuery("pragma table_info(" + table + ");");
+      while (rs.next()) names.add(rs.getString("name"));
+      rs.close();
+      columns.put(table, names);
+    }
+    sm.close();
+    List<String> hashes = Arrays.asList("hash1", "hash2"),
+        files = Arrays.asList("file1", "file2");
+    for (String table : tables) {
+      if (columns.get(table).equals(files)) {
+        migrate(table);
+      } else if (columns.get(table).equals(hashes)) {
+        // a migration that did not finish is done again
+        String old = table.endsWith(MIGRATING) ?
+            table.substring(0, table.length() - MIGRATING.length()) : null;
+        if (old == null || !files.equals(columns.get(old)))
+          addPairTable(table);
+      }
+    }
+    conn.commit();
+  }
+
+  private void migrate(String table) throws Exception {
+    Util.log("moving " + table + " to the blob store");
+    String to = table + MIGRATING;
+    Statement sm = conn.createStatement();
+    sm.execute("drop table if exists " + to + ";");
+    sm.execute("create table " + to + " (hash1 blob, hash2 blob);");
+    sm.close();
+    PreparedStatement selectPs = conn.prepareStatement("select rowid, " +
+        "file1, file2 from " + table + " where rowid>? order by rowid " +
+        "limit " + COMMIT_ROWS + ";");
+    long rowid = 0, count = 0;
+    boolean more = true;
+    // a page of rows at a time, no query is open when the rows commit
+    while (more) {
+      more = false;
+      selectPs.setLong(1, rowid);
+      ResultSet rs = selectPs.executeQuery();
+      List<String> pairs = new ArrayList<>();
+      while (rs.next()) {
+        rowid = rs.getLong(1);
+        pairs.add(rs.getString(2));
+        pairs.add(rs.getString(3));
+        more = true;
+      }
+      rs.close();
+      for (int i = 0; i < pairs.size(); i += 2)
+        addPairs(to, nonNull(pairs.get(i)), nonNull(pairs.get(i + 1)));
+      count += pairs.size() / 2;
+    }
+    selectPs.close();
+    flush();
+    PreparedStatement ps = insertMap.remove(to);
+    if (ps != null) ps.close();
+    sm = conn.createStatement();
+    sm.execute("drop table " + table + ";");
+    sm.execute("alter table " + to + " rename to " + table + ";");
+    sm.close();
+    addPairTable(table);
+    commit();
+    Util.log(table + ": " + count + " pairs moved");
+  }
+
+  private static String nonNull(String s) {
+    return s == null ? "" : s;
+  }
+
+  public void addPairs(String table, String file1, String file2)
+      throws Exception {
+    long start = System.nanoTime();
+    setBulkLoad(true);
+    PreparedStatement ps = insertMap.get(table);
+    if (ps == null) {
+      String sql = "insert into " + table + " values(?, ?);";
+      ps = conn.prepareStatement(sql);
+      insertMap.put(table, ps);
+    }
+    ps.setBytes(1, blobs.add(file1));
+    ps.setBytes(2, blobs.add(file2));
+    ps.addBatch();
+    batchMap.merge(table, 1, Integer::sum);
     smCount++;
-    if (smCount > 999) {
-      smCount = 0;
-      conn.commit();
+    INSERT.since(start);
+    if (smCount >= COMMIT_ROWS || blobs.batchBytes() >= COMMIT_BYTES ||
+        System.currentTimeMillis() - lastCommit >= COMMIT_MILLIS) {
+      flush();
       Util.log(table + " commit");
     }
   }
 
   public void addPairs(String table, Reader reader1, Reader reader2)
       throws Exception {
-    String sql = "insert into " + table + " values(?, ?);";
-    PreparedStatement ps = conn.prepareStatement(sql);
-    ps.setClob(1, reader1);
-    ps.setClob(2, reader2);
-    ps.execute();
+    addPairs(table, read(reader1), read(reader2));
+  }
+
+  /**
+   * Execute the batched rows and commit
+   */
+  public void flush() throws Exception {
+    long start = System.nanoTime();
+    blobs.flush();
+    for (Map.Entry<String, Integer> e : batchMap.entrySet())
+      if (e.getValue() > 0)
+        insertMap.get(e.getKey()).executeBatch();
+    batchMap.clear();
+    conn.commit();
+    smCount = 0;
+    lastCommit = System.currentTimeMillis();
+    FLUSH.since(start);
   }
 
-  public ResultSet readPair(String table) throws Exception {
+  /**
+   * Without syncs and with a large page cache while loading, a crash may
+   * lose the load. Back to synchronous=NORMAL after it, safe in WAL mode.
+   * Neither can change inside a transaction.
+   */
+  private void setBulkLoad(boolean on) throws Exception {
+    if (bulkLoad == on) return;
+    conn.setAutoCommit(true);
+    Statement sm = conn.createStatement();
+    sm.execute(on ? "pragma synchronous=OFF;" : "pragma synchronous=NORMAL;");
+    // 256MB, or the default 2MB
+    sm.execute(on ? "pragma cache_size=-262144;" : "pragma cache_size=-2000;");
+    sm.close();
+    conn.setAutoCommit(false);
+    bulkLoad = on;
+  }
+
+  private static String read(Reader reader) throws Exception {
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[8192];
+    int n;
+    while ((n = reader.read(buf)) != -1)
+      sb.append(buf, 0, n);
+    reader.close();
+    return sb.toString();
+  }
+
+  /**
+   * Pairs of table, FETCH_ROWS rows at a time. Blobs are inflated when
+   * read, recent ones come from the blob cache.
+   */
+  public PairStream pairs(String table) throws Exception {
     Statement sm = conn.createStatement();
-    //sm.setFetchSize(9999);
-    String sql = "select * from " + table + ";";
-    return sm.executeQuery(sql);
+    sm.setFetchSize(FETCH_ROWS);
+    return new PairStream(sm, "select hash1, hash2 from " + table + ";",
+        blobs);
+  }
+
+  public String blobStat() {
+    return blobs.stat();
   }
 
   public void moveToMysql() throws Exception {
-    int count = 0;
-    Connection myConn = DriverManager.getConnection("jdbc:mysql://localhost/crr?user=root");
+    moveToMysql(Config.mysqlUrl);
+  }
+
+  /**
+   * Copy the pairs of all projects into the pair table of url. Rows are
+   * read on another thread and sent in batches. Any database with the
+   * project(id, name) and pair(file1, file2, pid) tables works.
+   */
+  public void moveToMysql(String url) throws Exception {
+    Connection myConn = DriverManager.getConnection(url);
     myConn.setAutoCommit(false);
-    Statement mySm = myConn.createStatement();
+    List<Integer> pids = new ArrayList<>();
+    PreparedStatement insertPs = myConn.prepareStatement(
+        "insert into project(name) values(?);");
+    PreparedStatement selectPs = myConn.prepareStatement(
+        "select id from project where name=?;");
     for (String project: Config.projects) {
       try {
-        mySm.execute("insert into project(name) values(\"" + project + "\");");
+        insertPs.setString(1, project);
+        insertPs.execute();
       } catch (Exception e) {}
-      ResultSet myRs = mySm.executeQuery(
-          "select id from project where name=\"" + project + "\";");
+      selectPs.setString(1, project);
+      ResultSet myRs = selectPs.executeQuery();
       myRs.next();
-      int pid = myRs.getInt("id");  // project id
-      //Util.log(pid);
-
-      Statement sm = conn.createStatement();
-      String sql = "select * from " + project + ";";
-      ResultSet rs = sm.executeQuery(sql);
-      sql = "insert into pair(file1, file2, pid) values(?, ?, ?);";
-      PreparedStatement myPs = myConn.prepareStatement(sql);
-      while (rs.next()) {
-        myPs.setString(1, rs.getString("file1"));
-        myPs.setString(2, rs.getString("file2"));
-        myPs.setInt(3, pid);
-        myPs.execute();
+      pids.add(myRs.getInt("id"));  // project id
+      myRs.close();
+    }
+    insertPs.close();
+    selectPs.close();
+    myConn.commit();
+
+    BlockingQueue<PairRow> queue = new ArrayBlockingQueue<>(QUEUE_ROWS);
+    ExecutorService readerThread = Executors.newSingleThreadExecutor();
+    Future<?> reader = readerThread.submit(() -> {
+      try {
+        for (int i = 0; i < Config.projects.size(); i++) {
+          PairStream pairs = pairs(Config.projects.get(i));
+          while (pairs.next())
+            queue.put(new PairRow(pids.get(i), pairs.string(1),
+                pairs.string(2)));
+          pairs.close();
+        }
+      } finally {
+        queue.put(PairRow.END);
+      }
+      return null;
+    });
 
+    PreparedStatement myPs = myConn.prepareStatement(
+        "insert into pair(file1, file2, pid) values(?, ?, ?);");
+    long count = 0, batch = 0, start = System.currentTimeMillis();
+    long lastReport = start;
+    try {
+      PairRow row;
+      while ((row = queue.take()) != PairRow.END) {
+        myPs.setString(1, row.file1);
+        myPs.setString(2, row.file2);
+        myPs.setInt(3, row.pid);
+        myPs.addBatch();
         count++;
-        Util.log(count);
-        if (count % 999 == 0)
+        if (++batch == BATCH_ROWS) {
+          myPs.executeBatch();
           myConn.commit();
+          batch = 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastReport >= REPORT_MILLIS) {
+          Util.log(count + " rows, " + count * 1000 / (now - start) +
+              " rows/s, queue " + queue.size());
+          lastReport = now;
+        }
       }
+      reader.get();
+      if (batch > 0) myPs.executeBatch();
+      myConn.commit();
+      long millis = Math.max(1, System.currentTimeMillis() - start);
+      Util.log(count + " rows in " + millis / 1000 + "s, " +
+          count * 1000 / millis + " rows/s");
+    } finally {
+      reader.cancel(true);
+      readerThread.shutdownNow();
+      myPs.close();
+      myConn.close();
     }
-    myConn.commit();
   }
 
   /**
-   * Must call it at the end
+   * Must call it at the end, ends the bulk load
    * @throws Exception
    */
   public void commit() throws Exception {
-    conn.commit();
+    flush();
+    setBulkLoad(false);
+  }
+
+  public void close() throws Exception {
+    commit();
+    blobs.close();
+    for (PreparedStatement ps : insertMap.values())
+      ps.close();
+    insertMap.clear();
+    conn.close();
+  }
+
+  private static class PairRow {
+    static final PairRow END = new PairRow(0, null, null);
+
+    int pid;
+    String file1, file2;
+
+    PairRow(int pid, String file1, String file2) {
+      this.pid = pid;
+      this.file1 = file1;
+      this.file2 = file2;
+    }
   }
 
 }
@@ -0,0 +1,299 @@
+package com.yfy.crr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes of "git show" of a commit. Most commits have no keyword at all,
+ * a scan of the bytes for the 4-grams that keywords start with tells them
+ * apart cheaply, and their Feature is counted from the bytes without
+ * decoding lines or matching keywords. The others go to FeatureExtractor.
+ * Past Config.diffBufferBytes the bytes are not kept, they are extracted
+ * as they are written, so a huge commit does not sit in memory whole.
+ *
+ * diff.reset(f, extractor, decoder); write ...; diff.extract(f, ...)
+ */
+public class DiffBuffer extends ByteArrayOutputStream {
+
+  // first 4 bytes of each keyword, sorted
+  private static final int[] grams;
+
+  // one hash bit per gram, checked before the binary search
+  private static final long[] bloom = new long[1 << 10];
+
+  private static final byte[] DIFF = bytes("diff --"),
+      DIFF_GIT = bytes("diff --git "), JAVA = bytes(".java"),
+      HUNK = bytes("@@ -"), IMPORT = bytes("import"), SLASHES = bytes("//"),
+      STAR = bytes("*");
+
+  private static final LongAdder COUNTED = Metrics.counter("mine.counted");
+
+  private static final LongAdder SPILLED = Metrics.counter("mine.spilled");
+
+  // capacity kept after extract(), a larger buffer is dropped
+  private static final int KEEP_BYTES = 1 << 16;
+
+  private final int limit;
+
+  // where the bytes go past limit, none before reset(f, ...)
+  private Feature feature;
+
+  private FeatureExtractor extractor;
+
+  private LineDecoder decoder;
+
+  private boolean spilled;
+
+  // bytes written since reset(f, ...), kept or not
+  private long written;
+
+  static {
+    List<String> keywords = new ArrayList<>(ConcurrentKeywords.list);
+    keywords.addAll(ConcurrentKeywords.classList);
+    TreeSet<Integer> set = new TreeSet<>();
+    for (String keyword : keywords) {
+      if (keyword.length() < 4)
+        throw new IllegalStateException("Keyword shorter than 4: " + keyword);
+      set.add(gram(bytes(keyword), 0));
+    }
+    grams = new int[set.size()];
+    int i = 0;
+    for (int gram : set) {
+      grams[i++] = gram;
+      int bit = hash(gram);
+      bloom[bit >>> 6] |= 1L << bit;
+    }
+  }
+
+  public DiffBuffer(int size) {
+    super(size);
+    limit = Config.diffBufferBytes;
+  }
+
+  /**
+   * Start the bytes of a commit. If they grow past the limit, f is begun
+   * with extractor, and the bytes so far and all after go to it through
+   * decoder.
+   */
+  public void reset(Feature f, FeatureExtractor extractor,
+                    LineDecoder decoder) {
+    reset();
+    feature = f;
+    this.extractor = extractor;
+    this.decoder = decoder;
+    spilled = false;
+    written = 0;
+  }
+
+  /**
+   * Bytes written since reset(f, ...)
+   */
+  public long written() {
+    return written;
+  }
+
+  /**
+   * If the bytes went past the limit to the extractor of reset()
+   */
+  public boolean isSpilled() {
+    return spilled;
+  }
+
+  /**
+   * Write the whole stream
+   */
+  public void readFrom(InputStream in) throws IOException {
+    byte[] b = new byte[8192];
+    int n;
+    while ((n = in.read(b)) != -1)
+      write(b, 0, n);
+  }
+
+  @Override
+  public void write(int b) {
+    written++;
+    if (!spilled && count == limit && extractor != null) spill();
+    if (spilled) decoder.write(b);
+    else super.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    written += len;
+    if (!spilled && count + len > limit && extractor != null) spill();
+    if (spilled) decoder.write(b, off, len);
+    else super.write(b, off, len);
+  }
+
+  private void spill() {
+    spilled = true;
+    SPILLED.increment();
+    extractor.begin(feature);
+    decoder.write(buf, 0, count);
+    count = 0;
+  }
+
+  /**
+   * Feature f of all the bytes written, counted or extracted by extractor
+   * through decoder. If spilled, the extraction of reset() is ended
+   * instead. A buffer grown large is dropped after.
+   */
+  public void extract(Feature f, FeatureExtractor extractor,
+                      LineDecoder decoder) {
+    if (spilled) {
+      this.decoder.finish();
+      this.extractor.end();
+    } else if (!tryCount(f)) {
+      extractor.begin(f);
+      decoder.write(buf, 0, count);
+      decoder.finish();
+      extractor.end();
+    }
+    shrink();
+  }
+
+  private void shrink() {
+    reset();
+    if (buf.length > KEEP_BYTES) buf = new byte[KEEP_BYTES];
+    feature = null;
+    extractor = null;
+    decoder = null;
+  }
+
+  /**
+   * If a keyword may be in the bytes
+   */
+  public boolean mayHaveKeyword() {
+    // the 0 bytes at first are not in any gram
+    int gram = 0;
+    for (int i = 0; i < count; i++) {
+      gram = gram << 8 | buf[i] & 0xff;
+      int bit = hash(gram);
+      if ((bloom[bit >>> 6] & 1L << bit) != 0 &&
+          Arrays.binarySearch(grams, gram) >= 0)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Feature of the bytes the same as from FeatureExtractor, if there is
+   * no keyword in them. False if a keyword may be there, or a line needs
+   * decoding to tell if it is ignored, f is not changed then.
+   */
+  public boolean tryCount(Feature f) {
+    if (mayHaveKeyword()) return false;
+    boolean isMessage = true, isJava = false, isHunk = false;
+    int fileNum = 0, hunkNum = 0, lineAdd = 0, lineRemove = 0;
+    int i = 0;
+    while (i < count) {
+      // lines end like in LineDecoder, "\n", "\r" or "\r\n"
+      int end = i;
+      while (end < count && buf[end] != '\n' && buf[end] != '\r') end++;
+      if (isMessage && startsWith(i, end, DIFF))
+        isMessage = false;
+      if (!isMessage) {
+        if (startsWith(i, end, DIFF_GIT)) {
+          isJava = endsWith(i, end, JAVA);
+          if (isJava) fileNum++;
+          isHunk = false;
+        } else if (isJava) {
+          if (startsWith(i, end, HUNK)) {
+            hunkNum++;
+            isHunk = true;
+          }
+          if (isHunk && end > i && (buf[i] == '+' || buf[i] == '-')) {
+            int ignore = isIgnore(i, end);
+            if (ignore < 0) return false;
+            if (ignore == 0) {
+              if (buf[i] == '+') lineAdd++;
+              else lineRemove++;
+            }
+          }
+        }
+      }
+      if (end + 1 < count && buf[end] == '\r' && buf[end + 1] == '\n') end++;
+      i = end + 1;
+    }
+    f.msgKey = 0;
+    f.file = fileNum;
+    f.hunk = hunkNum;
+    f.lineAdd = lineAdd;
+    f.lineRemove = lineRemove;
+    f.lineSub = Math.abs(lineAdd - lineRemove);
+    f.lineSum = lineAdd + lineRemove;
+    f.keyAdd = f.keyRemove = f.keySub = f.keySum = f.contextKey = 0;
+    COUNTED.increment();
+    return true;
+  }
+
+  /**
+   * FeatureExtractor.isIgnore of line [from, to), 1 if ignored, 0 if not,
+   * -1 if it depends on a non-ascii char after the first word
+   */
+  private int isIgnore(int from, int to) {
+    int i = from + 1;
+    while (i < to && isSpace(buf[i])) i++;
+    // a non-ascii char is never "import", "//" or "*"
+    if (i == to || buf[i] < 0) return 0;
+    int start = i;
+    boolean match;
+    if (isWordChar(buf[i])) {
+      while (i < to && buf[i] >= 0 && isWordChar(buf[i])) i++;
+      match = equals(start, i, IMPORT);
+    } else {
+      while (i < to && buf[i] >= 0 && !isSpace(buf[i]) &&
+          !isWordChar(buf[i])) i++;
+      match = equals(start, i, SLASHES) || equals(start, i, STAR);
+    }
+    // a letter would make the word longer
+    if (match && i < to && buf[i] < 0) return -1;
+    return match ? 1 : 0;
+  }
+
+  private static boolean isWordChar(byte b) {
+    return KeywordMatcher.isWordChar((char) b);
+  }
+
+  // "\\s"
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' ||
+        b == '\r';
+  }
+
+  private boolean equals(int from, int to, byte[] word) {
+    if (to - from != word.length) return false;
+    for (int i = from; i < to; i++)
+      if (buf[i] != word[i - from]) return false;
+    return true;
+  }
+
+  private boolean startsWith(int from, int to, byte[] prefix) {
+    return to - from >= prefix.length &&
+        equals(from, from + prefix.length, prefix);
+  }
+
+  private boolean endsWith(int from, int to, byte[] suffix) {
+    return to - from >= suffix.length && equals(to - suffix.length, to, suffix);
+  }
+
+  private static int gram(byte[] b, int i) {
+    return (b[i] & 0xff) << 24 | (b[i + 1] & 0xff) << 16 |
+        (b[i + 2] & 0xff) << 8 | b[i + 3] & 0xff;
+  }
+
+  private static int hash(int gram) {
+    return (gram * 0x9E3779B1) >>> 16;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.US_ASCII);
+  }
+}
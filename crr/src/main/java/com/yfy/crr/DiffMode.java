@@ -0,0 +1,12 @@
+package com.yfy.crr;
+
+/**
+ * Where GitLogParser gets the diff of a commit from
+ */
+public enum DiffMode {
+  GitShow,  // fork "git show" for each commit, the default
+  // diff in process with the opened repository. Hunk headers have no
+  // function context and merge commits have no diff, so contextKey and
+  // the merge features differ from the ones the model is trained on.
+  JGit
+}
@@ -0,0 +1,188 @@
+package com.yfy.crr;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Changes distilled from a pair of sources, keyed by the sha-1 of both
+ * sources, kept between runs in one file. Least recently used results
+ * are evicted when the size goes over maxBytes.
+ *
+ * file  records of (20 bytes key, change count, (label, type) of changes),
+ *       appended as results come, rewritten from oldest to newest on close
+ */
+public class DistillCache implements Closeable {
+
+  public static class Result {
+    public final String[] labels, types;
+
+    public Result(String[] labels, String[] types) {
+      this.labels = labels;
+      this.types = types;
+    }
+
+    // rough size in memory and in file
+    private int bytes() {
+      int bytes = 64;
+      for (int i = 0; i < labels.length; i++)
+        bytes += 8 + 2 * (labels[i].length() + types[i].length());
+      return bytes;
+    }
+  }
+
+  private static final int KEY_SIZE = 20;
+
+  private File file;
+
+  private long maxBytes, bytes;
+
+  // access order, eldest first
+  private LinkedHashMap<Key, Result> map =
+      new LinkedHashMap<>(1024, 0.75f, true);
+
+  private DataOutputStream out;
+
+  private int hits, misses;
+
+  public DistillCache(File file, long maxBytes) throws Exception {
+    this.file = file;
+    this.maxBytes = maxBytes;
+    if (file.exists()) {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file)));
+      try {
+        while (true) {
+          byte[] key = new byte[KEY_SIZE];
+          in.readFully(key);
+          put(new Key(key), read(in));
+        }
+      } catch (EOFException e) {
+        // end of file, or a record cut by a crash
+      } finally {
+        in.close();
+      }
+      // drop a cut record before appending
+      rewrite();
+    } else if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(file, true)));
+  }
+
+  /**
+   * Key of a pair of sources from the sha-1 of each source, so that the
+   * sources can be hashed as they stream by
+   */
+  public static byte[] key(MessageDigest sha1, byte[] digest1,
+                           byte[] digest2) {
+    sha1.reset();
+    sha1.update(digest1);
+    sha1.update(digest2);
+    return sha1.digest();
+  }
+
+  /**
+   * @return null if not cached
+   */
+  public synchronized Result get(byte[] key) {
+    Result result = map.get(new Key(key));
+    if (result == null) misses++;
+    else hits++;
+    return result;
+  }
+
+  public synchronized void add(byte[] key, Result result) throws IOException {
+    Key k = new Key(key);
+    if (map.containsKey(k)) return;
+    put(k, result);
+    out.write(key);
+    write(out, result);
+  }
+
+  public synchronized String stat() {
+    return "distill cache: " + map.size() + " results, " + (bytes >> 10) +
+        " KB, " + hits + " hits, " + misses + " misses";
+  }
+
+  private void put(Key key, Result result) {
+    Result old = map.put(key, result);
+    if (old != null) bytes -= old.bytes() + KEY_SIZE;
+    bytes += result.bytes() + KEY_SIZE;
+    Iterator<Map.Entry<Key, Result>> it = map.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<Key, Result> e = it.next();
+      bytes -= e.getValue().bytes() + KEY_SIZE;
+      it.remove();
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+    rewrite();
+  }
+
+  /**
+   * Rewrite the file with the results left after eviction
+   */
+  private void rewrite() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream tmpOut = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tmp)));
+    for (Map.Entry<Key, Result> e : map.entrySet()) {
+      tmpOut.write(e.getKey().bytes);
+      write(tmpOut, e.getValue());
+    }
+    tmpOut.close();
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void write(DataOutput out, Result result)
+      throws IOException {
+    out.writeInt(result.labels.length);
+    for (int i = 0; i < result.labels.length; i++) {
+      out.writeUTF(result.labels[i]);
+      out.writeUTF(result.types[i]);
+    }
+  }
+
+  private static Result read(DataInput in) throws IOException {
+    int n = in.readInt();
+    String[] labels = new String[n], types = new String[n];
+    for (int i = 0; i < n; i++) {
+      labels[i] = in.readUTF();
+      types[i] = in.readUTF();
+    }
+    return new Result(labels, types);
+  }
+
+  private static class Key {
+    private final byte[] bytes;
+    private final int hash;
+
+    Key(byte[] bytes) {
+      this.bytes = bytes;
+      // sha-1 bytes are already uniform
+      hash = (bytes[0] & 0xff) << 24 | (bytes[1] & 0xff) << 16 |
+          (bytes[2] & 0xff) << 8 | bytes[3] & 0xff;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(bytes, ((Key) o).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
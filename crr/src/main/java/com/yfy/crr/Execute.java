@@ -2,23 +2,103 @@ package com.yfy.crr;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by yfy on 10/20/16.
+ * Every process is waited for and destroyed before exec returns, or the
+ * reader of execWithOutput is closed. Its stderr is drained on another
+ * thread, so a chatty git can not block. All the waits for a command
+ * share one deadline of timeout seconds.
  */
 public class Execute {
 
+  // seconds a command may run
+  public static long timeout = 600;
+
+  // keep the last bytes of stderr for the error message
+  private static final int STDERR_TAIL = 4096;
+
+  // wait for the end of stderr after the exit
+  private static final long STDERR_MILLIS = 1000;
+
+  private static ExecutorService drainers =
+      Executors.newCachedThreadPool(daemon("execute-stderr"));
+
+  private static ScheduledExecutorService watchdog =
+      Executors.newSingleThreadScheduledExecutor(daemon("execute-timeout"));
+
+  private static final Metrics.Histogram EXEC = Metrics.histogram("execute");
+
+  private static final LongAdder TIMEOUTS =
+      Metrics.counter("execute.timeouts");
+
+  /**
+   * Run cmd in dir (null for the current dir), stdout goes to reader on
+   * this thread. The process is killed after timeout seconds.
+   * @return exit value
+   */
+  public static int exec(String cmd, String dir, long timeout,
+                         IOutputReader reader) throws Exception {
+    Run run = new Run(cmd, dir, timeout);
+    try {
+      InputStream is = run.process.getInputStream();
+      try {
+        reader.read(is);
+        drain(is);
+      } finally {
+        is.close();
+      }
+      return run.finish();
+    } catch (IOException e) {
+      // the stream is closed when the process is killed
+      if (run.killed.get()) throw run.timeout();
+      throw e;
+    } finally {
+      run.close();
+    }
+  }
+
+  /**
+   * Stdout of cmd read as the process writes it, null if it does not
+   * start. Closing the reader ends the process, it is killed after
+   * timeout seconds.
+   */
   public static BufferedReader execWithOutput(String cmd, String dir) {
     try {
-      Process process;
-      if (dir == null)
-        process = Runtime.getRuntime().exec(cmd);
-      else
-        process = Runtime.getRuntime().exec(cmd, null, new File(dir));
+      Run run = new Run(cmd, dir, timeout);
       return new BufferedReader(
-          new InputStreamReader(process.getInputStream()));
+          new InputStreamReader(run.process.getInputStream())) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+            run.finish();
+          } catch (IOException e) {
+            throw e;
+          } catch (Exception e) {
+            throw new IOException(e);
+          } finally {
+            run.close();
+          }
+        }
+      };
     } catch (Exception e) {
       e.printStackTrace();
       return null;
@@ -27,16 +107,141 @@ public class Execute {
 
   public static void execIgnoreOutput(String cmd, String dir) {
     try {
-      InputStream is;
-      if (dir == null)
-        is = Runtime.getRuntime().exec(cmd).getInputStream();
-      else
-        is = Runtime.getRuntime().exec(cmd, null, new File(dir))
-            .getInputStream();
-      byte[] buf = new byte[4096];
-      while (is.read(buf) != -1);
+      exec(cmd, dir, timeout, Execute::drain);
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * A process with its stderr drained and a watchdog that kills it at the
+   * deadline
+   */
+  private static class Run {
+    final String cmd;
+    final long timeout, start, deadline;
+    final Process process;
+    final AtomicBoolean killed = new AtomicBoolean();
+    final ScheduledFuture<?> kill;
+    final Future<String> stderr;
+
+    Run(String cmd, String dir, long timeout) throws IOException {
+      this.cmd = cmd;
+      this.timeout = timeout;
+      start = System.nanoTime();
+      deadline = start + TimeUnit.SECONDS.toNanos(timeout);
+      process = Execute.start(cmd, dir);
+      kill = watchdog.schedule(() -> {
+        killed.set(true);
+        process.destroyForcibly();
+      }, timeout, TimeUnit.SECONDS);
+      stderr = drainLater(process.getErrorStream());
+      process.getOutputStream().close();
+    }
+
+    /**
+     * Wait for the exit until the deadline, then for the end of stderr a
+     * moment at most, a child of the process may keep it open
+     * @return exit value
+     */
+    int finish() throws Exception {
+      if (!process.waitFor(left(), TimeUnit.NANOSECONDS)) {
+        // closed its stdout but did not exit
+        killed.set(true);
+        process.destroyForcibly();
+      }
+      if (killed.get()) throw timeout();
+      int exit = process.exitValue();
+      String error = stderr(process, stderr, left());
+      if (exit != 0)
+        Util.log("[Error] " + cmd + " exit " + exit + ": " + error);
+      return exit;
+    }
+
+    TimeoutException timeout() {
+      TIMEOUTS.increment();
+      return new TimeoutException("Timeout after " + timeout + "s: " + cmd);
+    }
+
+    private long left() {
+      return Math.max(0, deadline - System.nanoTime());
+    }
+
+    void close() {
+      kill.cancel(false);
+      process.destroyForcibly();
+      EXEC.since(start);
+    }
+  }
+
+  /**
+   * Stderr of an exited process from drainLater. It is waited for a
+   * moment at most, and nanos at most, as a child of the process may keep
+   * it open. The process is destroyed then.
+   */
+  static String stderr(Process process, Future<String> stderr, long nanos)
+      throws InterruptedException {
+    try {
+      return stderr.get(Math.min(nanos,
+          TimeUnit.MILLISECONDS.toNanos(STDERR_MILLIS)), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      // closes stderr
+      process.destroyForcibly();
+      return "(stderr still open)";
+    } catch (ExecutionException e) {
+      return String.valueOf(e.getCause());
+    }
+  }
+
+  static Process start(String cmd, String dir) throws IOException {
+    // split like Runtime.exec(String)
+    List<String> args = new ArrayList<>();
+    StringTokenizer st = new StringTokenizer(cmd);
+    while (st.hasMoreTokens())
+      args.add(st.nextToken());
+    ProcessBuilder builder = new ProcessBuilder(args);
+    if (dir != null)
+      builder.directory(new File(dir));
+    return builder.start();
+  }
+
+  /**
+   * Drain a stderr on another thread
+   * @return the last bytes of it
+   */
+  static Future<String> drainLater(InputStream is) {
+    return drainers.submit(() -> tail(is));
+  }
+
+  private static String tail(InputStream is) throws IOException {
+    byte[] buf = new byte[STDERR_TAIL];
+    byte[] tail = new byte[STDERR_TAIL];
+    int tailLength = 0, n;
+    try {
+      while ((n = is.read(buf)) != -1) {
+        int keep = Math.min(tailLength, STDERR_TAIL - n);
+        System.arraycopy(tail, tailLength - keep, tail, 0, keep);
+        System.arraycopy(buf, 0, tail, keep, n);
+        tailLength = keep + n;
+      }
+    } catch (IOException e) {
+      // closed when the process is destroyed, a child of it may hold it
+    } finally {
+      is.close();
+    }
+    return new String(tail, 0, tailLength).trim();
+  }
+
+  private static void drain(InputStream is) throws IOException {
+    byte[] buf = new byte[4096];
+    while (is.read(buf) != -1);
+  }
+
+  private static ThreadFactory daemon(String name) {
+    return r -> {
+      Thread t = new Thread(r, name);
+      t.setDaemon(true);
+      return t;
+    };
+  }
 }
@@ -1,5 +1,9 @@
 package com.yfy.crr;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * Created by yfy on 16-11-27.
  * Feature of commit
@@ -17,10 +21,46 @@ public class Feature {
   }
 
   public String toStr() {
-    return String.format("1:%d 2:%d 3:%d 4:%d 5:%d" +
-        " 6:%d 7:%d 8:%d 9:%d 10:%d 11:%d 12:%d",
-        msgKey, file, hunk, lineAdd, lineRemove, lineSub, lineSum,
-        keyAdd, keyRemove, keySub, keySum, contextKey);
+    int[] values = {msgKey, file, hunk, lineAdd, lineRemove, lineSub, lineSum,
+        keyAdd, keyRemove, keySub, keySum, contextKey};
+    StringBuilder sb = new StringBuilder(96);
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) sb.append(' ');
+      sb.append(i + 1).append(':').append(values[i]);
+    }
+    return sb.toString();
+  }
+
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(msgKey);
+    out.writeInt(file);
+    out.writeInt(hunk);
+    out.writeInt(lineAdd);
+    out.writeInt(lineRemove);
+    out.writeInt(lineSub);
+    out.writeInt(lineSum);
+    out.writeInt(keyAdd);
+    out.writeInt(keyRemove);
+    out.writeInt(keySub);
+    out.writeInt(keySum);
+    out.writeInt(contextKey);
+  }
+
+  public static Feature read(DataInput in) throws IOException {
+    Feature f = new Feature();
+    f.msgKey = in.readInt();
+    f.file = in.readInt();
+    f.hunk = in.readInt();
+    f.lineAdd = in.readInt();
+    f.lineRemove = in.readInt();
+    f.lineSub = in.readInt();
+    f.lineSum = in.readInt();
+    f.keyAdd = in.readInt();
+    f.keyRemove = in.readInt();
+    f.keySub = in.readInt();
+    f.keySum = in.readInt();
+    f.contextKey = in.readInt();
+    return f;
   }
 
 }
@@ -0,0 +1,150 @@
+package com.yfy.crr;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Feature of a commit from the lines of "git show", one line at a time.
+ * Lines before the first "diff --" are the message (from the 4th line),
+ * hunks of java files are the code.
+ *
+ * begin(feature), accept(line) for each line, end()
+ */
+public class FeatureExtractor implements Consumer<CharSequence> {
+
+  private KeywordMatcher matcher = ConcurrentKeywords.matcher;
+
+  // class keywords of '+' lines and of other hunk lines, may be null
+  private KeywordMatcher.Listener addListener, minusListener;
+
+  private Feature feature;
+
+  private int lineNum;
+
+  private boolean isMessage, isJava, isHunk;
+
+  private int msgKey, fileNum, hunkNum, lineAdd, lineRemove,
+      keyAdd, keyRemove, contextKey;
+
+  public FeatureExtractor(KeywordMatcher.Listener addListener,
+                          KeywordMatcher.Listener minusListener) {
+    this.addListener = addListener;
+    this.minusListener = minusListener;
+  }
+
+  public void begin(Feature feature) {
+    this.feature = feature;
+    lineNum = 0;
+    isMessage = true;
+    isJava = isHunk = false;
+    msgKey = fileNum = hunkNum = lineAdd = lineRemove = 0;
+    keyAdd = keyRemove = contextKey = 0;
+  }
+
+  public Feature extract(List<String> lines) {
+    Feature f = new Feature();
+    begin(f);
+    lines.forEach(this);
+    end();
+    return f;
+  }
+
+  @Override
+  public void accept(CharSequence line) {
+    if (isMessage && startsWith(line, "diff --"))
+      isMessage = false;
+    if (isMessage) {
+      if (lineNum >= 3)
+        msgKey += matcher.count(line, 0, line.length(), null);
+      lineNum++;
+      return;
+    }
+
+    if (startsWith(line, "diff --git ")) {
+      isJava = endsWith(line, ".java");
+      if (isJava) fileNum++;
+      isHunk = false;
+    } else if (isJava) {
+      if (startsWith(line, "@@ -")) {
+        hunkNum++;
+        isHunk = true;
+      }
+      if (isHunk) {
+        if (line.length() == 0) return;
+        if (isIgnore(line)) return;
+        char type = line.charAt(0);
+        int keyNum = matcher.count(line, 1, line.length(),
+            type == '+' ? addListener : minusListener);
+        if (type == '+') {
+          lineAdd++;
+          keyAdd += keyNum;
+        } else if (type == '-') {
+          lineRemove++;
+          keyRemove += keyNum;
+        } else {
+          contextKey += keyNum;
+        }
+      }
+    }
+  }
+
+  public Feature end() {
+    Feature f = feature;
+    f.msgKey = msgKey;
+    f.file = fileNum;
+    f.hunk = hunkNum;
+    f.lineAdd = lineAdd;
+    f.lineRemove = lineRemove;
+    f.lineSub = Math.abs(lineAdd - lineRemove);
+    f.lineSum = lineAdd + lineRemove;
+    f.keyAdd = keyAdd;
+    f.keyRemove = keyRemove;
+    f.keySub = Math.abs(keyAdd - keyRemove);
+    f.keySum = keyAdd + keyRemove;
+    f.contextKey = contextKey;
+    feature = null;
+    return f;
+  }
+
+  /**
+   * If the first word of line (without the diff mark) is "//", "*" or
+   * "import"
+   */
+  private static boolean isIgnore(CharSequence line) {
+    int i = 1, n = line.length();
+    while (i < n && isSpace(line.charAt(i))) i++;
+    if (i == n) return false;
+    int start = i;
+    if (KeywordMatcher.isWordChar(line.charAt(i))) {
+      while (i < n && KeywordMatcher.isWordChar(line.charAt(i))) i++;
+      return equals(line, start, i, "import");
+    }
+    while (i < n && !isSpace(line.charAt(i)) &&
+        !KeywordMatcher.isWordChar(line.charAt(i))) i++;
+    return equals(line, start, i, "//") || equals(line, start, i, "*");
+  }
+
+  // "\\s"
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' ||
+        c == '\r';
+  }
+
+  private static boolean equals(CharSequence s, int from, int to,
+                                String word) {
+    if (to - from != word.length()) return false;
+    for (int i = from; i < to; i++)
+      if (s.charAt(i) != word.charAt(i - from)) return false;
+    return true;
+  }
+
+  private static boolean startsWith(CharSequence s, String prefix) {
+    return s.length() >= prefix.length() &&
+        equals(s, 0, prefix.length(), prefix);
+  }
+
+  private static boolean endsWith(CharSequence s, String suffix) {
+    return s.length() >= suffix.length() &&
+        equals(s, s.length() - suffix.length(), s.length(), suffix);
+  }
+}
@@ -0,0 +1,255 @@
+package com.yfy.crr;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Commit id, commit time and feature of the related commits of a project,
+ * stored by column. Rows are added in memory and saved at once. A saved
+ * store is memory mapped, so loading it costs nothing until it is read.
+ *
+ * header  magic, version, rows, header size, project name (utf-8),
+ *         padded to 8 bytes
+ * ids     rows * 20 bytes
+ * columns time, then the 12 ints of Feature in the order of toStr,
+ *         rows * 4 bytes each
+ */
+public class FeatureStore {
+
+  private static final int MAGIC = 0x43525246;  // CRRF
+
+  private static final int VERSION = 1;
+
+  private static final int ID_SIZE = 20;
+
+  // time and the features
+  public static final int TIME = 0, COLUMNS = 13;
+
+  private String project;
+
+  private int rows;
+
+  // in memory
+  private byte[] ids;
+
+  private int[][] columns;
+
+  // mapped, until a row is added
+  private ByteBuffer mappedIds;
+
+  private IntBuffer[] mappedColumns;
+
+  public FeatureStore(String project) {
+    this.project = project;
+    ids = new byte[ID_SIZE * 64];
+    columns = new int[COLUMNS][64];
+  }
+
+  private FeatureStore() {
+  }
+
+  /**
+   * The saved store of file, or an empty one if there is none
+   */
+  public static FeatureStore open(File file, String project)
+      throws IOException {
+    return file.exists() ? load(file) : new FeatureStore(project);
+  }
+
+  public static FeatureStore load(File file) throws IOException {
+    FeatureStore store = new FeatureStore();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      MappedByteBuffer buf = raf.getChannel()
+          .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buf.getInt() != MAGIC)
+        throw new IOException("Not a feature store: " + file);
+      int version = buf.getInt();
+      if (version != VERSION)
+        throw new IOException("Feature store version " + version + ": " + file);
+      int rows = buf.getInt();
+      int headerSize = buf.getInt();
+      byte[] name = new byte[buf.getInt()];
+      buf.get(name);
+      store.project = new String(name, StandardCharsets.UTF_8);
+      store.rows = rows;
+
+      int pos = headerSize;
+      store.mappedIds = slice(buf, pos, rows * ID_SIZE);
+      pos += rows * ID_SIZE;
+      store.mappedColumns = new IntBuffer[COLUMNS];
+      for (int c = 0; c < COLUMNS; c++) {
+        store.mappedColumns[c] = slice(buf, pos, rows * 4).asIntBuffer();
+        pos += rows * 4;
+      }
+    }
+    return store;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buf, int pos, int length) {
+    ByteBuffer dup = buf.duplicate();
+    dup.position(pos);
+    dup.limit(pos + length);
+    return dup.slice();
+  }
+
+  public String project() {
+    return project;
+  }
+
+  public int rows() {
+    return rows;
+  }
+
+  public void add(AnyObjectId id, int time, Feature f) {
+    if (mappedColumns != null) unmap();
+    if (rows == columns[0].length) grow(rows * 2);
+    id.copyRawTo(ids, rows * ID_SIZE);
+    int[][] c = columns;
+    c[TIME][rows] = time;
+    c[1][rows] = f.msgKey;
+    c[2][rows] = f.file;
+    c[3][rows] = f.hunk;
+    c[4][rows] = f.lineAdd;
+    c[5][rows] = f.lineRemove;
+    c[6][rows] = f.lineSub;
+    c[7][rows] = f.lineSum;
+    c[8][rows] = f.keyAdd;
+    c[9][rows] = f.keyRemove;
+    c[10][rows] = f.keySub;
+    c[11][rows] = f.keySum;
+    c[12][rows] = f.contextKey;
+    rows++;
+  }
+
+  /**
+   * Keep the first rows, like the rows saved by a run that did not finish
+   * cut off
+   */
+  public FeatureStore truncate(int rows) {
+    if (rows < this.rows) this.rows = rows;
+    return this;
+  }
+
+  public int get(int column, int row) {
+    return mappedColumns != null ? mappedColumns[column].get(row) :
+        columns[column][row];
+  }
+
+  public ObjectId id(int row) {
+    if (mappedIds == null)
+      return ObjectId.fromRaw(ids, row * ID_SIZE);
+    byte[] id = new byte[ID_SIZE];
+    ByteBuffer dup = mappedIds.duplicate();
+    dup.position(row * ID_SIZE);
+    dup.get(id);
+    return ObjectId.fromRaw(id);
+  }
+
+  public int time(int row) {
+    return get(TIME, row);
+  }
+
+  public Feature feature(int row) {
+    Feature f = new Feature();
+    f.msgKey = get(1, row);
+    f.file = get(2, row);
+    f.hunk = get(3, row);
+    f.lineAdd = get(4, row);
+    f.lineRemove = get(5, row);
+    f.lineSub = get(6, row);
+    f.lineSum = get(7, row);
+    f.keyAdd = get(8, row);
+    f.keyRemove = get(9, row);
+    f.keySub = get(10, row);
+    f.keySum = get(11, row);
+    f.contextKey = get(12, row);
+    return f;
+  }
+
+  /**
+   * Write the rows in libsvm format, "label 1:msgKey ... 12:contextKey"
+   */
+  public void exportLibsvm(PrintWriter pw, int label) {
+    StringBuilder sb = new StringBuilder(128);
+    for (int r = 0; r < rows; r++) {
+      sb.setLength(0);
+      sb.append(label);
+      for (int c = 1; c < COLUMNS; c++)
+        sb.append(' ').append(c).append(':').append(get(c, r));
+      pw.println(sb);
+    }
+  }
+
+  /**
+   * Write to a temp file with a buffered channel, then move it to file
+   */
+  public void save(File file) throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    dir.mkdirs();
+    File tmp = new File(dir, file.getName() + ".tmp");
+    byte[] name = project.getBytes(StandardCharsets.UTF_8);
+    int headerSize = (20 + name.length + 7) & ~7;
+    try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer buf = ByteBuffer.allocate(Math.max(1 << 16, headerSize));
+      buf.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(headerSize)
+          .putInt(name.length).put(name);
+      buf.position(headerSize);
+      for (int r = 0; r < rows; r++) {
+        if (buf.remaining() < ID_SIZE) flush(channel, buf);
+        if (mappedIds == null) {
+          buf.put(ids, r * ID_SIZE, ID_SIZE);
+        } else {
+          id(r).copyRawTo(buf);
+        }
+      }
+      for (int c = 0; c < COLUMNS; c++)
+        for (int r = 0; r < rows; r++) {
+          if (buf.remaining() < 4) flush(channel, buf);
+          buf.putInt(get(c, r));
+        }
+      flush(channel, buf);
+    }
+    Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buf)
+      throws IOException {
+    buf.flip();
+    while (buf.hasRemaining())
+      channel.write(buf);
+    buf.clear();
+  }
+
+  // copy the mapped rows to memory to add rows
+  private void unmap() {
+    ids = new byte[Math.max(64, rows) * ID_SIZE];
+    mappedIds.duplicate().get(ids, 0, rows * ID_SIZE);
+    columns = new int[COLUMNS][Math.max(64, rows)];
+    for (int c = 0; c < COLUMNS; c++)
+      mappedColumns[c].duplicate().get(columns[c], 0, rows);
+    mappedIds = null;
+    mappedColumns = null;
+  }
+
+  private void grow(int capacity) {
+    ids = Arrays.copyOf(ids, capacity * ID_SIZE);
+    for (int c = 0; c < COLUMNS; c++)
+      columns[c] = Arrays.copyOf(columns[c], capacity);
+  }
+}
@@ -0,0 +1,94 @@
+package com.yfy.crr;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One "git cat-file --batch" process for many object lookups of a
+ * repository. Not thread safe, use one per thread.
+ */
+public class GitCatFile implements AutoCloseable {
+
+  private String dir;
+
+  private Process process;
+
+  private OutputStream stdin;
+
+  private InputStream stdout;
+
+  private Future<String> stderr;
+
+  public GitCatFile(String dir) throws Exception {
+    this.dir = dir;
+    process = Execute.start("git cat-file --batch", dir);
+    stdin = process.getOutputStream();
+    stdout = new BufferedInputStream(process.getInputStream(), 65536);
+    stderr = Execute.drainLater(process.getErrorStream());
+  }
+
+  /**
+   * Content of an object, like "git cat-file -p" for blobs
+   * @param rev object id or revision such as "commitId:path"
+   * @return null if the object is missing
+   */
+  public byte[] read(String rev) throws Exception {
+    stdin.write((rev + '\n').getBytes(StandardCharsets.UTF_8));
+    stdin.flush();
+    // <sha> <type> <size> or <rev> missing
+    String header = readLine();
+    if (header.endsWith(" missing") || header.endsWith(" ambiguous"))
+      return null;
+    int size = Integer.parseInt(header.substring(header.lastIndexOf(' ') + 1));
+    byte[] content = new byte[size];
+    int off = 0;
+    while (off < size) {
+      int n = stdout.read(content, off, size - off);
+      if (n < 0) throw new EOFException("git cat-file in " + dir);
+      off += n;
+    }
+    if (stdout.read() != '\n')
+      throw new IOException("Bad git cat-file output in " + dir);
+    return content;
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+    int b;
+    while ((b = stdout.read()) != '\n') {
+      if (b < 0) throw new EOFException("git cat-file in " + dir);
+      line.write(b);
+    }
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * End the process, killing it if it does not exit in Execute.timeout
+   */
+  @Override
+  public void close() throws Exception {
+    long deadline = System.nanoTime() +
+        TimeUnit.SECONDS.toNanos(Execute.timeout);
+    try {
+      stdin.close();
+      if (!process.waitFor(Execute.timeout, TimeUnit.SECONDS)) {
+        Util.log("[Error] git cat-file timeout in " + dir);
+        return;
+      }
+      stdout.close();
+      String error = Execute.stderr(process, stderr,
+          Math.max(0, deadline - System.nanoTime()));
+      if (!error.isEmpty())
+        Util.log("[Error] git cat-file: " + error);
+    } finally {
+      process.destroyForcibly();
+    }
+  }
+}
@@ -1,15 +1,18 @@
 package com.yfy.crr;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.LogCommand;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by yfy on 9/24/16.
@@ -26,15 +29,65 @@ public class GitLogParser {
 
   private TaskType taskType;
 
+  private DiffMode diffMode = DiffMode.GitShow;
+
+  // of Config.diffIncludes and Config.diffExcludes, JGitDiff filters itself
+  private String pathspecs = PathGlobFilter.pathspecs();
+
+  private JGitDiff jgitDiff;
+
   private Map<String, Integer> rq3map, rq3map2;
 
   private RQ3 rq3;
 
   private RevCommit commit;
 
+  private KeywordMatcher.Listener rq3Add = classId ->
+      rq3.add(classId, true, commit.getCommitTime());
+
+  private KeywordMatcher.Listener rq3Minus = classId ->
+      rq3.add(classId, false, commit.getCommitTime());
+
+  private FeatureExtractor extractor = new FeatureExtractor(rq3Add, rq3Minus);
+
+  // lines of git show
+  private LineDecoder decoder = new LineDecoder(extractor);
+
+  // bytes of git show of the commit
+  private DiffBuffer diff = new DiffBuffer(8192);
+
+  // mine with a MiningPipeline if > 1
+  private int threads = 1;
+
+  // related commits of the project
+  private FeatureStore store;
+
+  private RQ2ChangeByTime rq2;
+
+  // incremental mining
+  private boolean incremental;
+
+  private Checkpoint checkpoint;
+
+  // only predicted related commits are written if not null
+  private CommitClassifier classifier;
+
+  private PackProfile packProfile = Config.packProfile;
+
+  // of feature(lines), no listeners
+  private FeatureExtractor linesExtractor = new FeatureExtractor(null, null);
+
+  // diff and keyword match of a commit, MiningPipeline times them apart
+  private static final Metrics.Histogram COMMIT =
+      Metrics.histogram("mine.commit");
+
+  private static final Metrics.Histogram WRITE =
+      Metrics.histogram("mine.write");
+
+  private static final LongAdder COMMITS = Metrics.counter("mine.commits");
+
   public GitLogParser() throws Exception {
     //db = new Db();
-    pw = new PrintWriter("../svm2/test");
     //pw2 = new PrintWriter("../svm/commitId");
     rq3map = new HashMap<>();
     rq3map2 = new HashMap<>();
@@ -46,15 +99,76 @@ public class GitLogParser {
     return this;
   }
 
+  public GitLogParser setDiffMode(DiffMode diffMode) {
+    this.diffMode = diffMode;
+    return this;
+  }
+
+  /**
+   * Mine in a MiningPipeline of threads. Output is the same as the
+   * sequential run.
+   */
+  public GitLogParser setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Only mine the commits after the checkpoint of the last run, add
+   * their rows to the feature stores
+   */
+  public GitLogParser setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    return this;
+  }
+
+  /**
+   * Write only the related commits that the classifier predicts related
+   */
+  public GitLogParser setClassifier(CommitClassifier classifier) {
+    this.classifier = classifier;
+    return this;
+  }
+
+  /**
+   * How JGit reads packs in the run, projects of Config.packProfiles have
+   * their own
+   */
+  public GitLogParser setPackProfile(PackProfile packProfile) {
+    this.packProfile = packProfile;
+    return this;
+  }
+
+  /**
+   * Mine the related commits of each project into its FeatureStore, then
+   * export all of them to svm2/test. Metrics go to Config.metricsDir/mine.
+   */
   public void parseAll() throws Exception {
-    parse("hadoop"); // 21m 35m
-    parse("flink"); // 18m
-    parse("tomcat"); // 5m
-    //parse("mahout"); // 4m
-    parse("cassandra"); // 9m
-    parse("lucene-solr"); // 40m 1h
-    parse("netty"); // 4m 9m
-    //parse("guava"); // 2m 4m
+    List<String> projects = Arrays.asList(
+        "hadoop", // 21m 35m
+        "flink", // 18m
+        "tomcat", // 5m
+        //"mahout", // 4m
+        "cassandra", // 9m
+        "lucene-solr", // 40m 1h
+        "netty"); // 4m 9m
+        //"guava"); // 2m 4m
+    Metrics.start("mine");
+    try {
+      if (threads > 1)
+        new MiningPipeline(threads).setTaskType(taskType)
+            .setDiffMode(diffMode).setIncremental(incremental)
+            .setClassifier(classifier).setPackProfile(packProfile)
+            .run(projects, rq3);
+      else
+        for (String project : projects)
+          parse(project);
+    } finally {
+      Metrics.stop();
+    }
+    pw = new PrintWriter("../svm2/test");
+    for (String project : projects)
+      FeatureStore.load(storeFile(project)).exportLibsvm(pw, 1);
     pw.close();
     //pw2.close();
 
@@ -73,27 +187,42 @@ public class GitLogParser {
     this.project = project;
     //db.createTable(project);
 
-    FileRepositoryBuilder builder = new FileRepositoryBuilder();
-    projectDir = Config.projectsDir + '/' + project;
-    Repository repo = builder.setGitDir(new File(projectDir + "/.git"))
-        .setMustExist(true)
-        .build();
+    projectDir = projectDir(project);
+    // a new window cache, the packs of the last project are not in it
+    PackProfile.of(project, packProfile).install();
+    Repository repo = openRepository(project);
     Git git = new Git(repo);
-    Iterable<RevCommit> log = git.log().call();
-    Iterator<RevCommit> it = log.iterator();
-
-    RQ2ChangeByTime rq2 = new RQ2ChangeByTime(project);
-    int commitCount = 0;
-    while (it.hasNext()) {
-      RevCommit commit = it.next();
-      this.commit = commit;
-      commitCount++;
-      //Util.log(commit.getFullMessage());
-      Feature feature = feature(commit.name());
+    try {
+      ObjectId head = repo.resolve(Constants.HEAD);
+
+      RQ2ChangeByTime rq2 = new RQ2ChangeByTime(project);
+      RQ3 allRq3 = rq3;
+      // a full run starts from an empty checkpoint and saves it too, so
+      // the FeatureStore it rewrites is never cut by an old one
+      checkpoint = new Checkpoint(project);
+      if (incremental) checkpoint.check(repo, head);
+      else checkpoint.reset();
+      store = checkpoint.storeRows() == 0 ? new FeatureStore(project) :
+          FeatureStore.open(storeFile(project), project)
+              .truncate(checkpoint.storeRows());
+      rq3 = checkpoint.rq3();
       if (taskType == TaskType.ChangeByTime)
-        rq2.deal(commit, feature);
+        checkpoint.forEach(rq2::deal);
+      int commitCount = mine(repo, log(git, head, checkpoint), rq2);
+      store.save(storeFile(project));
+      int storeRows = store.rows();
+      store = null;
+      checkpoint.save(head, rq3, storeRows);
+      allRq3.merge(rq3);
+      rq3 = allRq3;
+      checkpoint = null;
+      if (taskType == TaskType.ChangeByTime) rq2.finish();
+    } finally {
+      git.close();
+      repo.close();
     }
-    if (taskType == TaskType.ChangeByTime) rq2.finish();
+    PackProfile.logStats(project);
+    PackProfile.checkReleased(project, repo);
 //    Util.log("Project:             " + project);
 //    Util.log("Commit count:        " + commitCount);
 //    Util.log("Related commit count " + relatedCommitCount);
@@ -102,20 +231,85 @@ public class GitLogParser {
     //db.commit();
   }
 
-  // Get commit feature
-  private Feature feature(String commitId) throws Exception {
-    String cmd = "git show " + commitId;
-    BufferedReader br = Execute.execWithOutput(cmd, projectDir);
-    List<String> lines = br.lines().collect(Collectors.toList());
+  /**
+   * Feature of each commit, in the order of commits
+   * @return commit count
+   */
+  private int mine(Repository repo, Iterable<RevCommit> commits,
+                   RQ2ChangeByTime rq2) throws Exception {
+    if (diffMode == DiffMode.JGit)
+      jgitDiff = new JGitDiff(repo);
+    int commitCount = 0;
+    try {
+      for (RevCommit commit : commits) {
+        this.commit = commit;
+        commitCount++;
+        COMMITS.increment();
+        //Util.log(commit.getFullMessage());
+        Feature feature = feature(commit);
+        if (taskType == TaskType.ChangeByTime)
+          rq2.deal(commit, feature);
+        checkpoint.add(commit, feature);
+      }
+    } finally {
+      if (jgitDiff != null) {
+        jgitDiff.close();
+        jgitDiff = null;
+      }
+    }
+    return commitCount;
+  }
+
+  /**
+   * Commits from head, without the commits of the last run
+   */
+  static Iterable<RevCommit> log(Git git, ObjectId head,
+                                 Checkpoint checkpoint)
+      throws Exception {
+    LogCommand log = git.log().add(head);
+    if (checkpoint != null && checkpoint.lastSeen() != null)
+      log.not(checkpoint.lastSeen());
+    return log.call();
+  }
+
+  static File storeFile(String project) {
+    return new File(Config.featureDir, project);
+  }
+
+  static String projectDir(String project) {
+    return Config.projectsDir + '/' + project;
+  }
+
+  static Repository openRepository(String project) throws Exception {
+    FileRepositoryBuilder builder = new FileRepositoryBuilder();
+    return builder.setGitDir(new File(projectDir(project) + "/.git"))
+        .setMustExist(true)
+        .build();
+  }
 
+  // Get commit feature
+  private Feature feature(RevCommit commit) throws Exception {
+    long start = System.nanoTime();
     Feature f = new Feature();
-    textFeature(lines, f);
-    codeFeature(lines, f);
+    diff.reset(f, extractor, decoder);
+    if (diffMode == DiffMode.JGit) {
+      jgitDiff.show(commit, diff);
+    } else {
+      String cmd = "git show " + commit.name() + pathspecs;
+      // a failed git show is not mined, the run stops before the head moves
+      int exit = Execute.exec(cmd, projectDir, Execute.timeout, diff::readFrom);
+      if (exit != 0)
+        throw new IOException(cmd + " exit " + exit + " in " + projectDir);
+    }
+    diff.extract(f, extractor, decoder);
+    COMMIT.since(start);
 
-    if (f.related()) {
+    if (f.related() && (classifier == null || classifier.predict(f))) {
       relatedCommitCount++;
       fileCount++;
-      pw.println("1 " + f.toStr());
+      start = System.nanoTime();
+      store.add(commit, commit.getCommitTime(), f);
+      WRITE.since(start);
       //pw2.println(project + ' ' + commitId);
       //writeDiff(lines, Config.projectsDir + "/diff2", fileCount + "_" +
       //    project + '_' + commitId + ".diff");
@@ -123,108 +317,12 @@ public class GitLogParser {
     return f;
   }
 
-  public void textFeature(List<String> lines, Feature feature) {
-    int i, j;
-    for (i = 0; i < lines.size(); i++)
-      if (lines.get(i).startsWith("diff --")) break;
-    String message = "";
-    for (j = 3; j < i; j++)
-      message += lines.get(j) + '\n';
-
-    String[] words = message.split("\\b");
-    int keyNum = 0;
-    for (String word : words) {
-      for (String key : ConcurrentKeywords.list)
-        if (word.equals(key)) keyNum++;
-    }
-    feature.msgKey = keyNum;
-    if (keyNum > 0) {
-      //Util.log(keyNum);
-//      Util.log(commitId);
-//      Util.log(message);
-    }
-  }
-
-  public void codeFeature(List<String> lines, Feature feature) throws Exception {
-    int fileNum = 0, hunkNum = 0, lineAdd = 0, lineRemove = 0,
-        keyAdd = 0, keyRemove = 0, contextKey = 0;
-    boolean isJava = false, isHunk = false;
-    for (String line : lines) {
-      if (line.startsWith("diff --git ")) {
-        isJava = line.endsWith(".java");
-        if (isJava) fileNum++;
-        isHunk = false;
-      } else if (isJava) {
-        if (line.startsWith("@@ -")) {
-          hunkNum++;
-          isHunk = true;
-        }
-        if (isHunk) {
-          String[] words;
-          if (line.length() == 0) continue;
-          words = line.substring(1, line.length()).split("\\b|\\s");
-          if (isIgnore(words)) continue;
-          //Util.log(words.length);
-          int keyNum = 0;
-          for (String word : words) {
-            for (String key : ConcurrentKeywords.list)
-              if (word.equals(key)) keyNum++;
-            // rq3
-            for (String key : ConcurrentKeywords.classList)
-              if (word.equals(key)) {
-                if (line.charAt(0) == '+')
-                  rq3.add(key, true, commit);
-                  //rq3map.put(key, rq3map.getOrDefault(key, 0) + 1);
-                else
-                  rq3.add(key, false, commit);
-                  //rq3map2.put(key, rq3map2.getOrDefault(key, 0) + 1);
-              }
-          }
-          if (line.charAt(0) == '+') {
-            lineAdd++;
-            keyAdd += keyNum;
-          }
-          else if (line.charAt(0) == '-') {
-            lineRemove++;
-            keyRemove += keyNum;
-          } else {
-            contextKey += keyNum;
-          }
-        }
-      }
-    }
-    int lineSub = Math.abs(lineAdd - lineRemove);
-    int lineSum = lineAdd + lineRemove;
-    int keySub = Math.abs(keyAdd - keyRemove);
-    int keySum = keyAdd + keyRemove;
-//    System.out.printf("fileNum:%d hunkNum:%d lineAdd:%d lineRemove:%d keyAdd:%d keyRemove:%d contextKey: %d\n",
-//        fileNum, hunkNum, lineAdd, lineRemove, keyAdd, keyRemove, contextKey);
-    feature.file = fileNum;
-    feature.hunk = hunkNum;
-    feature.lineAdd = lineAdd;
-    feature.lineRemove = lineRemove;
-    feature.lineSub = lineSub;
-    feature.lineSum = lineSum;
-    feature.keyAdd = keyAdd;
-    feature.keyRemove = keyRemove;
-    feature.keySub = keySub;
-    feature.keySum = keySum;
-    feature.contextKey = contextKey;
-  }
-
-  private boolean isIgnore(String[] words) {
-    for (String word : words) {
-      if (isEmpty(word)) continue;
-      return word.equals("//") || word.equals("*") || word.equals("import");
-    }
-    return false;
-  }
-
-  private boolean isEmpty(String word) {
-    for (int i = 0; i < word.length(); i++)
-      if (word.charAt(i) != ' ' || word.charAt(i) != '\t')
-        return false;
-    return true;
+  /**
+   * Text and code feature of recorded lines in one pass, not counted in
+   * rq3 as they are not from a mined commit
+   */
+  public Feature feature(List<String> lines) {
+    return linesExtractor.extract(lines);
   }
 
   private void writeDiff(List<String> lines, String dir, String filename)
@@ -296,42 +394,38 @@ public class GitLogParser {
       return;
     }
     String line;
-    while ((line = br.readLine()) != null) {
-      if (line.length() > 5 && line.charAt(0) == 'M' &&
-          line.substring(line.length() - 5).equals(".java")) {
-        String filename = line.substring(2);
-        //Util.log(filename);
-        fileCount++;
-        checkoutCommitId(commitId, filename);
+    // one git cat-file for the blobs of all the files
+    try (GitCatFile catFile = new GitCatFile(projectDir)) {
+      while ((line = br.readLine()) != null) {
+        if (line.length() > 5 && line.charAt(0) == 'M' &&
+            line.substring(line.length() - 5).equals(".java")) {
+          String filename = line.substring(2);
+          //Util.log(filename);
+          fileCount++;
+          readPair(catFile, commitId, filename);
+        }
       }
     }
+    br.close();
   }
 
-  private void checkoutCommitId(String commitId, String filename)
-      throws Exception {
-    String cmd = "git checkout " + commitId + "^ -- " + filename;
-    Execute.execIgnoreOutput(cmd, projectDir);
-    String fullFilename = projectDir + '/' + filename;
-    //Reader reader1 = new FileReader(fullFilename);
-    String content1 = new String(Files.readAllBytes(Paths.get(fullFilename)));
+  // the file before and after commitId, read without a checkout
+  private void readPair(GitCatFile catFile, String commitId,
+                        String filename) throws Exception {
+    byte[] bytes1 = catFile.read(commitId + "^:" + filename);
+    if (bytes1 == null) return;
+    String content1 = new String(bytes1, StandardCharsets.UTF_8);
 
     List<String> keywords = ConcurrentKeywords.list;
     for (String keyword : keywords) {
       if (content1.contains(keyword)) {
         crFileCount++;
-        cmd = "git checkout " + commitId + " -- " + filename;
-        Execute.execIgnoreOutput(cmd, projectDir);
-        fullFilename = projectDir + '/' + filename;
-        //Reader reader2 = new FileReader(fullFilename);
         String content2 = new String(
-            Files.readAllBytes(Paths.get(fullFilename)));
-        //db.addPairs(project, reader1, reader2);
+            catFile.read(commitId + ':' + filename), StandardCharsets.UTF_8);
         //db.addPairs(project, content1, content2);
         break;
       }
     }
-//    cmd = "git checkout " + commitId + " -- " + filename;
-//    Execute.exec(cmd, projectDir);
   }
 
   private boolean filter2(String msg) {
@@ -0,0 +1,10 @@
+package com.yfy.crr;
+
+import java.io.InputStream;
+
+/**
+ * Read the stdout of a command run by Execute
+ */
+public interface IOutputReader {
+  public void read(InputStream is) throws Exception;
+}
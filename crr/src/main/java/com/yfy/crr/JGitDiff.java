@@ -0,0 +1,186 @@
+package com.yfy.crr;
+
+import org.eclipse.jgit.diff.DiffConfig;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.diff.DiffFormatter;
+import org.eclipse.jgit.diff.RenameDetector;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.AbstractTreeIterator;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Produce the lines of "git show commitId" without forking git. Hunk
+ * headers have no function context after "@@ ... @@", unlike git.
+ * One instance per thread, it shares one ObjectReader between the
+ * RevWalk and the DiffFormatter. Only the mined files are diffed, see
+ * PathGlobFilter.mined(). If a mined file is added or deleted, renames are
+ * detected among all the files like git show, and only then are blobs of
+ * other files read.
+ */
+public class JGitDiff implements AutoCloseable {
+
+  private ObjectReader reader;
+
+  private RevWalk walk;
+
+  private DiffFormatter formatter;
+
+  private RenameDetector renames;
+
+  private LineDecoder out;
+
+  // where the formatter writes, out or the stream of show(commitId, os)
+  private OutputStream target;
+
+  private SimpleDateFormat dateFormat;
+
+  private Predicate<String> mined = PathGlobFilter.mined();
+
+  private static final LongAdder NOT_MINED = Metrics.counter("mine.notMined");
+
+  private static final LongAdder RENAME_SCANS =
+      Metrics.counter("mine.renameScans");
+
+  public JGitDiff(Repository repo) {
+    reader = repo.newObjectReader();
+    walk = new RevWalk(reader);
+    out = new LineDecoder(null);
+    formatter = new DiffFormatter(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        target.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        target.write(b, off, len);
+      }
+    });
+    formatter.setReader(reader, repo.getConfig());
+    renames = new RenameDetector(reader, repo.getConfig().get(DiffConfig.KEY));
+    // git show default
+    dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z",
+        Locale.US);
+  }
+
+  /**
+   * Pass the lines of "git show commitId" to consumer, as they are
+   * formatted. Merge commits have no "diff --git" section, like the
+   * combined diff of git show.
+   */
+  public void show(AnyObjectId commitId, Consumer<CharSequence> consumer)
+      throws Exception {
+    out.setConsumer(consumer);
+    show(commitId, out);
+    out.finish();
+  }
+
+  /**
+   * Write the bytes of "git show commitId" to os
+   */
+  public void show(AnyObjectId commitId, OutputStream os) throws Exception {
+    target = os;
+    RevCommit commit = walk.parseCommit(commitId);
+    writeHeader(commit, os);
+    if (commit.getParentCount() < 2) {
+      List<DiffEntry> entries = scan(commit);
+      if (entries.isEmpty())
+        NOT_MINED.increment();
+      else
+        formatter.format(entries);
+    }
+    formatter.flush();
+  }
+
+  /**
+   * Changed mined files of a non-merge commit against its parent
+   */
+  public List<DiffEntry> scan(RevCommit commit) throws Exception {
+    AbstractTreeIterator oldTree;
+    if (commit.getParentCount() == 0) {
+      oldTree = new EmptyTreeIterator();
+    } else {
+      RevCommit parent = walk.parseCommit(commit.getParent(0));
+      oldTree = new CanonicalTreeParser(null, reader, parent.getTree());
+    }
+    AbstractTreeIterator newTree =
+        new CanonicalTreeParser(null, reader, commit.getTree());
+    List<DiffEntry> all = formatter.scan(oldTree, newTree);
+    // a rename pairs an added and a deleted file and changes only them, a
+    // file changing its mode may be split into those
+    for (DiffEntry entry : all) {
+      if ((entry.getChangeType() != DiffEntry.ChangeType.MODIFY ||
+          entry.getOldMode().getBits() != entry.getNewMode().getBits()) &&
+          mined.test(path(entry))) {
+        RENAME_SCANS.increment();
+        renames.reset();
+        renames.addAll(all);
+        all = renames.compute(NullProgressMonitor.INSTANCE);
+        break;
+      }
+    }
+    List<DiffEntry> entries = new ArrayList<>();
+    for (DiffEntry entry : all)
+      if (mined.test(path(entry))) entries.add(entry);
+    return entries;
+  }
+
+  /**
+   * Path of the "diff --git" line of entry, which the extractor tells java
+   * files by, a deleted file has its old path there
+   */
+  private static String path(DiffEntry entry) {
+    return entry.getChangeType() == DiffEntry.ChangeType.DELETE ?
+        entry.getOldPath() : entry.getNewPath();
+  }
+
+  private void writeHeader(RevCommit commit, OutputStream os)
+      throws Exception {
+    StringBuilder sb = new StringBuilder();
+    sb.append("commit ").append(commit.name()).append('\n');
+    if (commit.getParentCount() > 1) {
+      sb.append("Merge:");
+      for (RevCommit parent : commit.getParents())
+        sb.append(' ').append(parent.name(), 0, 7);
+      sb.append('\n');
+    }
+    PersonIdent author = commit.getAuthorIdent();
+    dateFormat.setTimeZone(author.getTimeZone());
+    sb.append("Author: ").append(author.getName())
+        .append(" <").append(author.getEmailAddress()).append(">\n");
+    sb.append("Date:   ").append(dateFormat.format(author.getWhen()))
+        .append("\n\n");
+    String message = commit.getFullMessage();
+    int end = message.length();
+    while (end > 0 && message.charAt(end - 1) == '\n') end--;
+    for (String line : message.substring(0, end).split("\n", -1))
+      sb.append("    ").append(line).append('\n');
+    sb.append('\n');
+    os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close() {
+    formatter.close();
+    walk.close();
+    reader.close();
+  }
+}
@@ -0,0 +1,127 @@
+package com.yfy.crr;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Trie of keywords. Counts the words of a line that equal a keyword, the
+ * same as splitting the line with "\\b" and comparing every word with
+ * every keyword, in one pass and without allocation.
+ */
+public class KeywordMatcher {
+
+  public interface Listener {
+    /**
+     * A word equals classes.get(classId)
+     */
+    void hit(int classId);
+  }
+
+  // [A-Za-z0-9_]
+  private static final int ALPHABET = 63;
+
+  private static final byte[] index = new byte[128];
+
+  static {
+    Arrays.fill(index, (byte) -1);
+    byte n = 0;
+    for (char c = 'A'; c <= 'Z'; c++) index[c] = n++;
+    for (char c = 'a'; c <= 'z'; c++) index[c] = n++;
+    for (char c = '0'; c <= '9'; c++) index[c] = n++;
+    index['_'] = n;
+  }
+
+  // node * ALPHABET + index -> child node, -1 if none. Node 0 is the root.
+  private int[] next;
+
+  // times the word of a node is in keywords, keywords may repeat
+  private int[] keyCount;
+
+  // index in classes of the word of a node, -1 if not a class
+  private int[] classId;
+
+  private int nodeCount;
+
+  public KeywordMatcher(List<String> keywords, List<String> classes) {
+    next = new int[ALPHABET];
+    keyCount = new int[1];
+    classId = new int[1];
+    Arrays.fill(next, -1);
+    classId[0] = -1;
+    nodeCount = 1;
+    for (String keyword : keywords) {
+      int node = insert(keyword);
+      keyCount[node]++;
+    }
+    for (int i = classes.size() - 1; i >= 0; i--) {
+      int node = insert(classes.get(i));
+      classId[node] = i;
+    }
+  }
+
+  /**
+   * Count the keywords in s[from, to), call listener for classes
+   * @param listener may be null
+   */
+  public int count(CharSequence s, int from, int to, Listener listener) {
+    int keys = 0;
+    int node = 0;  // -1 when the word is not a prefix of any keyword
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (isWordChar(c)) {
+        if (node >= 0)
+          node = c < 128 && index[c] >= 0 ? next[node * ALPHABET + index[c]] : -1;
+      } else {
+        if (node > 0)
+          keys += hit(node, listener);
+        node = 0;
+      }
+    }
+    if (node > 0)
+      keys += hit(node, listener);
+    return keys;
+  }
+
+  /**
+   * Word characters of "\\b"
+   */
+  public static boolean isWordChar(char c) {
+    if (c < 128) return index[c] >= 0;
+    return Character.isLetterOrDigit(c);
+  }
+
+  private int hit(int node, Listener listener) {
+    if (listener != null && classId[node] >= 0)
+      listener.hit(classId[node]);
+    return keyCount[node];
+  }
+
+  private int insert(String word) {
+    int node = 0;
+    for (int i = 0; i < word.length(); i++) {
+      char ch = word.charAt(i);
+      int c = ch < 128 ? index[ch] : -1;
+      if (c < 0)
+        throw new IllegalArgumentException("Not a word: " + word);
+      int child = next[node * ALPHABET + c];
+      if (child < 0) {
+        child = newNode();
+        next[node * ALPHABET + c] = child;
+      }
+      node = child;
+    }
+    return node;
+  }
+
+  private int newNode() {
+    if (nodeCount == keyCount.length) {
+      int capacity = nodeCount * 2;
+      next = Arrays.copyOf(next, capacity * ALPHABET);
+      Arrays.fill(next, nodeCount * ALPHABET, next.length, -1);
+      keyCount = Arrays.copyOf(keyCount, capacity);
+      classId = Arrays.copyOf(classId, capacity);
+      Arrays.fill(classId, nodeCount, capacity, -1);
+    }
+    return nodeCount++;
+  }
+}
@@ -0,0 +1,125 @@
+package com.yfy.crr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Split the bytes written to it into lines like BufferedReader.readLine
+ * ("\n", "\r" or "\r\n") and pass each decoded line to a consumer.
+ * The line is a view of a reused buffer, valid only during the call.
+ * Memory is bounded by the longest line.
+ */
+public class LineDecoder extends OutputStream {
+
+  private Consumer<CharSequence> consumer;
+
+  private byte[] bytes = new byte[256];
+
+  private ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+  private CharBuffer chars = CharBuffer.allocate(256);
+
+  private int length;
+
+  private boolean ascii = true, skipLF;
+
+  private CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+  public LineDecoder(Consumer<CharSequence> consumer) {
+    this.consumer = consumer;
+  }
+
+  public void setConsumer(Consumer<CharSequence> consumer) {
+    this.consumer = consumer;
+  }
+
+  /**
+   * Decode the whole stream
+   */
+  public void readFrom(InputStream in) throws IOException {
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1)
+      write(buf, 0, n);
+    finish();
+  }
+
+  @Override
+  public void write(int b) {
+    if (b == '\n') {
+      if (skipLF)
+        skipLF = false;
+      else
+        emit();
+    } else if (b == '\r') {
+      emit();
+      skipLF = true;
+    } else {
+      skipLF = false;
+      if (length == bytes.length) {
+        bytes = Arrays.copyOf(bytes, length * 2);
+        byteBuffer = ByteBuffer.wrap(bytes);
+      }
+      bytes[length++] = (byte) b;
+      ascii &= (b & 0x80) == 0;
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    for (int i = off; i < off + len; i++)
+      write(b[i]);
+  }
+
+  /**
+   * Bytes from the position to the limit of buf, the position is kept
+   */
+  public void write(ByteBuffer buf) {
+    for (int i = buf.position(), n = buf.limit(); i < n; i++)
+      write(buf.get(i));
+  }
+
+  /**
+   * End of input, emit the last line if it has no line break
+   */
+  public void finish() {
+    if (length > 0) emit();
+    skipLF = false;
+  }
+
+  private void emit() {
+    chars.clear();
+    if (chars.capacity() < length)
+      chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+    if (ascii) {
+      for (int i = 0; i < length; i++)
+        chars.put((char) bytes[i]);
+    } else {
+      decode();
+    }
+    chars.flip();
+    length = 0;
+    ascii = true;
+    consumer.accept(chars);
+  }
+
+  private void decode() {
+    byteBuffer.limit(length).position(0);
+    decoder.reset();
+    // utf-8 never has more chars than bytes
+    CoderResult result = decoder.decode(byteBuffer, chars, true);
+    if (!result.isUnderflow()) throw new IllegalStateException(result.toString());
+    decoder.flush(chars);
+  }
+}
@@ -0,0 +1,352 @@
+package com.yfy.crr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms of a run, by name. Call sites
+ * keep what they record to in static fields:
+ *
+ * private static final Metrics.Histogram FETCH = Metrics.histogram("...");
+ * long start = System.nanoTime(); ...; FETCH.since(start);
+ *
+ * Between start(run) and stop(), a row of every metric is appended to
+ * Config.metricsDir/run.csv every Config.metricsSeconds, with the heap,
+ * gc and allocation of the jvm. stop() logs a summary and writes it to
+ * run.json.
+ */
+public class Metrics {
+
+  private static final Map<String, Histogram> histograms =
+      new ConcurrentHashMap<>();
+
+  private static final Map<String, LongAdder> counters =
+      new ConcurrentHashMap<>();
+
+  private static final Map<String, LongSupplier> gauges =
+      new ConcurrentHashMap<>();
+
+  // value of each counter at the last report
+  private static Map<String, Long> lastCounts = new ConcurrentHashMap<>();
+
+  private static ScheduledExecutorService reporter;
+
+  private static String run;
+
+  private static long startMillis, lastReportMillis;
+
+  // gc of the jvm before the run
+  private static long gcCountStart, gcMillisStart;
+
+  // bytes allocated in the run, and by each thread at the last report
+  private static long allocated;
+
+  private static Map<Long, Long> threadAllocated = new HashMap<>();
+
+  public static Histogram histogram(String name) {
+    return histograms.computeIfAbsent(name, k -> new Histogram());
+  }
+
+  public static LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, k -> new LongAdder());
+  }
+
+  /**
+   * Value read at each report, like the size of a queue
+   */
+  public static void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  public static void removeGauge(String name) {
+    gauges.remove(name);
+  }
+
+  /**
+   * Reset every metric and report them periodically until stop(). Runs
+   * are started and stopped on one thread.
+   */
+  public static void start(String run) throws Exception {
+    stop();
+    Metrics.run = run;
+    for (Histogram h : histograms.values()) h.reset();
+    for (LongAdder c : counters.values()) c.reset();
+    lastCounts.clear();
+    gcCountStart = gcMillisStart = 0;
+    threadAllocated.clear();
+    Map<String, Long> totals = totals();
+    gcCountStart = totals.get("jvm.gc.count");
+    gcMillisStart = totals.get("jvm.gc.millis");
+    allocated = 0;
+    new File(Config.metricsDir).mkdirs();
+    File csv = file(".csv");
+    if (!csv.exists()) {
+      PrintWriter pw = new PrintWriter(csv);
+      pw.println("time,name,count,rate,mean_us,p50_us,p90_us,p99_us,max_us");
+      pw.close();
+    }
+    startMillis = lastReportMillis = System.currentTimeMillis();
+    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "metrics");
+      t.setDaemon(true);
+      return t;
+    });
+    reporter.scheduleAtFixedRate(() -> {
+      try {
+        report();
+      } catch (Exception e) {
+        Util.log("[Error] metrics " + e);
+      }
+    }, Config.metricsSeconds, Config.metricsSeconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Report the last rows, log the summary and write it to run.json
+   */
+  public static void stop() throws Exception {
+    if (reporter == null) return;
+    reporter.shutdown();
+    reporter.awaitTermination(1, TimeUnit.MINUTES);
+    reporter = null;
+    report();
+    summary();
+  }
+
+  private static synchronized void report() throws Exception {
+    long now = System.currentTimeMillis();
+    double seconds = Math.max(1, now - lastReportMillis) / 1000.0;
+    lastReportMillis = now;
+    PrintWriter pw = new PrintWriter(new FileWriter(file(".csv"), true));
+    for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms)
+        .entrySet()) {
+      Histogram h = e.getValue();
+      long count = h.count();
+      if (count == 0) continue;
+      long[] buckets = h.snapshot();
+      pw.println(now + "," + e.getKey() + ',' + count + ',' +
+          rate(e.getKey(), count, seconds) + ',' + h.mean() / 1000 + ',' +
+          h.percentile(buckets, 50) / 1000 + ',' +
+          h.percentile(buckets, 90) / 1000 + ',' +
+          h.percentile(buckets, 99) / 1000 + ',' + h.max() / 1000);
+    }
+    for (Map.Entry<String, Long> e : totals().entrySet())
+      pw.println(now + "," + e.getKey() + ',' + e.getValue() + ',' +
+          rate(e.getKey(), e.getValue(), seconds) + ",,,,,");
+    for (Map.Entry<String, Long> e : levels().entrySet())
+      pw.println(now + "," + e.getKey() + ',' + e.getValue() + ",,,,,,");
+    pw.close();
+  }
+
+  // per second since the last report, and keep count
+  private static long rate(String name, long count, double seconds) {
+    Long last = lastCounts.put(name, count);
+    return Math.round((count - (last == null ? 0 : last)) / seconds);
+  }
+
+  /**
+   * Values that only grow: counters, gc and allocated bytes
+   */
+  private static synchronized Map<String, Long> totals() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongAdder> e : counters.entrySet())
+      values.put(e.getKey(), e.getValue().sum());
+    long gcCount = 0, gcMillis = 0;
+    for (GarbageCollectorMXBean gc :
+        ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcCount += Math.max(0, gc.getCollectionCount());
+      gcMillis += Math.max(0, gc.getCollectionTime());
+    }
+    values.put("jvm.gc.count", gcCount - gcCountStart);
+    values.put("jvm.gc.millis", gcMillis - gcMillisStart);
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      // what each live thread allocated since the last report, the last
+      // bytes of a thread that ended are lost
+      long[] ids = threads.getAllThreadIds();
+      long[] bytes = ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(ids);
+      Map<Long, Long> now = new HashMap<>();
+      for (int i = 0; i < ids.length; i++) {
+        if (bytes[i] < 0) continue;
+        Long last = threadAllocated.get(ids[i]);
+        allocated += bytes[i] - (last == null ? 0 : last);
+        now.put(ids[i], bytes[i]);
+      }
+      threadAllocated = now;
+      values.put("jvm.allocated", allocated);
+    }
+    return values;
+  }
+
+  /**
+   * Values that go up and down: gauges and the heap
+   */
+  private static Map<String, Long> levels() {
+    Map<String, Long> values = new TreeMap<>();
+    for (Map.Entry<String, LongSupplier> e : gauges.entrySet())
+      values.put(e.getKey(), e.getValue().getAsLong());
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean()
+        .getHeapMemoryUsage();
+    values.put("jvm.heap.used", heap.getUsed());
+    values.put("jvm.heap.committed", heap.getCommitted());
+    return values;
+  }
+
+  private static void summary() throws Exception {
+    long millis = Math.max(1, System.currentTimeMillis() - startMillis);
+    Util.log(run + " " + millis / 1000 + "s");
+    PrintWriter pw = new PrintWriter(file(".json"));
+    pw.println("{");
+    pw.println("  \"run\": \"" + run + "\",");
+    pw.println("  \"seconds\": " + millis / 1000.0 + ",");
+    pw.println("  \"histograms\": {");
+    List<String> rows = new ArrayList<>();
+    for (Map.Entry<String, Histogram> e : new TreeMap<>(histograms)
+        .entrySet()) {
+      Histogram h = e.getValue();
+      long count = h.count();
+      if (count == 0) continue;
+      long[] buckets = h.snapshot();
+      long p50 = h.percentile(buckets, 50) / 1000;
+      long p90 = h.percentile(buckets, 90) / 1000;
+      long p99 = h.percentile(buckets, 99) / 1000;
+      Util.log(String.format("%-20s %10d %10.1f/s  mean %dus  p50 %dus  " +
+              "p90 %dus  p99 %dus  max %dus", e.getKey(), count,
+          count * 1000.0 / millis, h.mean() / 1000, p50, p90, p99,
+          h.max() / 1000));
+      rows.add("    \"" + e.getKey() + "\": {\"count\": " + count +
+          ", \"mean_us\": " + h.mean() / 1000 + ", \"p50_us\": " + p50 +
+          ", \"p90_us\": " + p90 + ", \"p99_us\": " + p99 +
+          ", \"max_us\": " + h.max() / 1000 + "}");
+    }
+    pw.println(String.join(",\n", rows));
+    pw.println("  },");
+    pw.println("  \"values\": {");
+    rows.clear();
+    for (Map.Entry<String, Long> e : totals().entrySet()) {
+      Util.log(String.format("%-20s %10d %10.1f/s", e.getKey(), e.getValue(),
+          e.getValue() * 1000.0 / millis));
+      rows.add("    \"" + e.getKey() + "\": " + e.getValue());
+    }
+    for (Map.Entry<String, Long> e : levels().entrySet()) {
+      Util.log(String.format("%-20s %10d", e.getKey(), e.getValue()));
+      rows.add("    \"" + e.getKey() + "\": " + e.getValue());
+    }
+    pw.println(String.join(",\n", rows));
+    pw.println("  }");
+    pw.println("}");
+    pw.close();
+  }
+
+  private static File file(String suffix) {
+    return new File(Config.metricsDir, run + suffix);
+  }
+
+  /**
+   * Nanoseconds in log-linear buckets like HdrHistogram: below 16 one
+   * bucket per value, then 16 buckets per power of two, so a value is
+   * reported within 1/16 of it. Recording takes no lock.
+   */
+  public static class Histogram {
+    private static final int SUB_BITS = 4, SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(
+        (65 - SUB_BITS) * SUB);
+
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+      if (nanos < 0) nanos = 0;
+      buckets.incrementAndGet(index(nanos));
+      count.increment();
+      sum.add(nanos);
+      max.accumulate(nanos);
+    }
+
+    /**
+     * Record the nanoseconds from start to now
+     */
+    public void since(long start) {
+      record(System.nanoTime() - start);
+    }
+
+    public long count() {
+      return count.sum();
+    }
+
+    public long mean() {
+      long n = count.sum();
+      return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    public long max() {
+      return max.get();
+    }
+
+    long[] snapshot() {
+      long[] values = new long[buckets.length()];
+      for (int i = 0; i < values.length; i++)
+        values[i] = buckets.get(i);
+      return values;
+    }
+
+    void reset() {
+      for (int i = 0; i < buckets.length(); i++)
+        buckets.set(i, 0);
+      count.reset();
+      sum.reset();
+      max.reset();
+    }
+
+    static int index(long value) {
+      if (value < SUB) return (int) value;
+      int magnitude = 63 - Long.numberOfLeadingZeros(value);
+      int shift = magnitude - SUB_BITS;
+      return (shift + 1) * SUB + (int) ((value >>> shift) - SUB);
+    }
+
+    // highest value of bucket i
+    static long highest(int i) {
+      if (i < SUB) return i;
+      int shift = i / SUB - 1;
+      long lowest = (long) (SUB + i % SUB) << shift;
+      return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Value that percent of the values of a snapshot are at or below
+     */
+    long percentile(long[] snapshot, double percent) {
+      long count = 0;
+      for (long n : snapshot) count += n;
+      if (count == 0) return 0;
+      long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+      long seen = 0;
+      for (int i = 0; i < snapshot.length; i++) {
+        seen += snapshot[i];
+        if (seen >= rank) return Math.min(highest(i), max());
+      }
+      return max();
+    }
+  }
+}
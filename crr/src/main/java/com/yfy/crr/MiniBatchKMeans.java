@@ -0,0 +1,247 @@
+package com.yfy.crr;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Mini-batch k-means (Sculley, Web-scale k-means clustering) of the rows
+ * of a SparseMatrix, seeded with k-means++. Nearest centers are found on
+ * a ForkJoinPool, centers are updated on one thread, so a seed gives the
+ * same clusters whatever the thread count.
+ */
+public class MiniBatchKMeans {
+
+  private int k;
+
+  private int batchSize = 1024;
+
+  private int maxIterations = 500;
+
+  // stop when no center moves more than this
+  private double tolerance = 1e-9;
+
+  private long seed = 10;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private double[][] centers;
+
+  // squared norm of each center
+  private double[] centerNorms;
+
+  private int iterations;
+
+  private int[] assignment;
+
+  private int[] sizes;
+
+  private double sse;
+
+  public MiniBatchKMeans(int k) {
+    this.k = k;
+  }
+
+  public MiniBatchKMeans setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+    return this;
+  }
+
+  public MiniBatchKMeans setMaxIterations(int maxIterations) {
+    this.maxIterations = maxIterations;
+    return this;
+  }
+
+  public MiniBatchKMeans setSeed(long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  public MiniBatchKMeans setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  public MiniBatchKMeans fit(SparseMatrix data) throws Exception {
+    if (data.rows < k)
+      throw new IllegalArgumentException(data.rows + " rows for " + k +
+          " clusters");
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      Random random = new Random(seed);
+      seed(data, random, pool);
+
+      int batch = Math.min(batchSize, data.rows);
+      int[] rows = new int[batch];
+      int[] nearest = new int[batch];
+      long[] counts = new long[k];
+      double[][] old = new double[k][data.columns];
+      for (iterations = 1; iterations <= maxIterations; iterations++) {
+        for (int i = 0; i < batch; i++)
+          rows[i] = random.nextInt(data.rows);
+        pool.submit(() -> IntStream.range(0, batch).parallel().forEach(i ->
+            nearest[i] = nearest(data, rows[i]))).get();
+
+        for (int c = 0; c < k; c++)
+          System.arraycopy(centers[c], 0, old[c], 0, data.columns);
+        for (int i = 0; i < batch; i++) {
+          int c = nearest[i];
+          double eta = 1.0 / ++counts[c];
+          double[] center = centers[c];
+          for (int d = 0; d < center.length; d++)
+            center[d] *= 1 - eta;
+          for (int j = data.rowStart[rows[i]]; j < data.rowStart[rows[i] + 1];
+               j++)
+            center[data.cols[j]] += eta * data.values[j];
+        }
+        double shift = 0;
+        for (int c = 0; c < k; c++) {
+          shift = Math.max(shift, distance(centers[c], old[c]));
+          centerNorms[c] = norm(centers[c]);
+        }
+        if (shift <= tolerance) break;
+      }
+      iterations = Math.min(iterations, maxIterations);
+
+      assignment = new int[data.rows];
+      double[] errors = new double[data.rows];
+      pool.submit(() -> IntStream.range(0, data.rows).parallel().forEach(r -> {
+        int c = nearest(data, r);
+        assignment[r] = c;
+        errors[r] = squaredDistance(data, r, c);
+      })).get();
+      sizes = new int[k];
+      sse = 0;
+      for (int r = 0; r < data.rows; r++) {
+        sizes[assignment[r]]++;
+        sse += errors[r];
+      }
+    } finally {
+      pool.shutdown();
+    }
+    return this;
+  }
+
+  /**
+   * k-means++, each next center is a row picked with probability of its
+   * squared distance to the nearest chosen center
+   */
+  private void seed(SparseMatrix data, Random random, ForkJoinPool pool)
+      throws Exception {
+    centers = new double[k][data.columns];
+    centerNorms = new double[k];
+    double[] minDistances = new double[data.rows];
+    Arrays.fill(minDistances, Double.MAX_VALUE);
+    int row = random.nextInt(data.rows);
+    for (int c = 0; c < k; c++) {
+      for (int j = data.rowStart[row]; j < data.rowStart[row + 1]; j++)
+        centers[c][data.cols[j]] = data.values[j];
+      centerNorms[c] = data.norms[row];
+      if (c == k - 1) break;
+
+      int center = c;
+      pool.submit(() -> IntStream.range(0, data.rows).parallel().forEach(r ->
+          minDistances[r] = Math.min(minDistances[r],
+              squaredDistance(data, r, center)))).get();
+      double sum = 0;
+      for (double d : minDistances) sum += d;
+      if (sum <= 0) {
+        // every row is on a center
+        row = random.nextInt(data.rows);
+        continue;
+      }
+      double target = random.nextDouble() * sum;
+      row = 0;
+      double acc = minDistances[0];
+      while (acc <= target && row < data.rows - 1)
+        acc += minDistances[++row];
+    }
+  }
+
+  private int nearest(SparseMatrix data, int r) {
+    int best = 0;
+    double bestDistance = Double.MAX_VALUE;
+    for (int c = 0; c < k; c++) {
+      double d = squaredDistance(data, r, c);
+      if (d < bestDistance) {
+        bestDistance = d;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  // |x - c|^2 = |x|^2 - 2 x.c + |c|^2
+  private double squaredDistance(SparseMatrix data, int r, int c) {
+    return Math.max(0,
+        data.norms[r] - 2 * data.dot(r, centers[c]) + centerNorms[c]);
+  }
+
+  private static double norm(double[] v) {
+    double sum = 0;
+    for (double x : v) sum += x * x;
+    return sum;
+  }
+
+  private static double distance(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++)
+      sum += (a[i] - b[i]) * (a[i] - b[i]);
+    return sum;
+  }
+
+  public int[] assignment() {
+    return assignment;
+  }
+
+  public double[][] centers() {
+    return centers;
+  }
+
+  /**
+   * Summary like the one of weka SimpleKMeans: centroids and the size of
+   * each cluster
+   */
+  public void print(PrintWriter pw, SparseMatrix data) {
+    pw.println("Mini-batch kMeans");
+    pw.println("=================");
+    pw.println();
+    pw.println("Instances:    " + data.rows);
+    pw.println("Attributes:   " + data.columns);
+    pw.println("Batch size:   " + batchSize);
+    pw.println("Seed:         " + seed);
+    pw.println();
+    pw.println("Number of iterations: " + iterations);
+    pw.println("Within cluster sum of squared errors: " + sse);
+    pw.println();
+    pw.println("Final cluster centroids:");
+    StringBuilder sb = new StringBuilder(String.format("%-11s%10s",
+        "Attribute", "Full Data"));
+    for (int c = 0; c < k; c++) sb.append(String.format("%10d", c));
+    pw.println(sb);
+    sb = new StringBuilder(String.format("%-11s%10s", "",
+        "(" + data.rows + ".0)"));
+    for (int c = 0; c < k; c++)
+      sb.append(String.format("%10s", "(" + sizes[c] + ".0)"));
+    pw.println(sb);
+
+    double[] mean = new double[data.columns];
+    for (int j = 0; j < data.rowStart[data.rows]; j++)
+      mean[data.cols[j]] += data.values[j];
+    for (int d = 0; d < data.columns; d++) {
+      sb = new StringBuilder(String.format("%-11s%10.4f", "t" + d,
+          mean[d] / data.rows));
+      for (int c = 0; c < k; c++)
+        sb.append(String.format("%10.4f", centers[c][d]));
+      pw.println(sb);
+    }
+    pw.println();
+    pw.println("Clustered Instances");
+    pw.println();
+    for (int c = 0; c < k; c++)
+      pw.println(String.format("%2d %11d (%3d%%)", c, sizes[c],
+          Math.round(100.0 * sizes[c] / data.rows)));
+  }
+}
@@ -0,0 +1,418 @@
+package com.yfy.crr;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mine projects in stages that run at the same time:
+ *
+ * producer  walks the commits of each project, in order
+ * diff      a pool, bytes of "git show" of a commit (JGit or git), a
+ *           diff too large to keep is extracted here as it is read
+ * feature   a pool, Feature and rq3 keyword hits of the bytes, see
+ *           DiffBuffer
+ * writer    one thread, applies the results in commit order to the
+ *           FeatureStore, RQ2ChangeByTime, RQ3 and Checkpoint of each
+ *           project, saves a project after its last commit
+ *
+ * Stages are joined by bounded queues, and at most maxInFlight commits are
+ * between the producer and the writer, so a slow stage holds back the
+ * ones before it. Output is the same as the sequential run.
+ */
+public class MiningPipeline {
+
+  private int diffThreads, featureThreads;
+
+  private int queueSize, maxInFlight;
+
+  private TaskType taskType;
+
+  private DiffMode diffMode = DiffMode.GitShow;
+
+  // of Config.diffIncludes and Config.diffExcludes, JGitDiff filters itself
+  private String pathspecs = PathGlobFilter.pathspecs();
+
+  private boolean incremental;
+
+  private CommitClassifier classifier;
+
+  private PackProfile packProfile = Config.packProfile;
+
+  // buffers of extracted commits, at most maxInFlight are made
+  private final Queue<DiffBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+  // end of a stage
+  private static final Item END = new Item(null, -1, null);
+
+  private static final Metrics.Histogram FETCH =
+      Metrics.histogram("mine.fetch");
+
+  private static final Metrics.Histogram MATCH =
+      Metrics.histogram("mine.match");
+
+  private static final Metrics.Histogram WRITE =
+      Metrics.histogram("mine.write");
+
+  private static final LongAdder COMMITS = Metrics.counter("mine.commits");
+
+  private static final LongAdder DIFF_BYTES =
+      Metrics.counter("mine.diffBytes");
+
+  public MiningPipeline(int threads) {
+    diffThreads = Math.max(1, threads / 2);
+    featureThreads = Math.max(1, threads - diffThreads);
+    queueSize = threads * 4;
+    maxInFlight = threads * 16;
+  }
+
+  public MiningPipeline setTaskType(TaskType taskType) {
+    this.taskType = taskType;
+    return this;
+  }
+
+  public MiningPipeline setDiffMode(DiffMode diffMode) {
+    this.diffMode = diffMode;
+    return this;
+  }
+
+  public MiningPipeline setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    return this;
+  }
+
+  public MiningPipeline setClassifier(CommitClassifier classifier) {
+    this.classifier = classifier;
+    return this;
+  }
+
+  /**
+   * How JGit reads packs, projects of Config.packProfiles have their own
+   */
+  public MiningPipeline setPackProfile(PackProfile packProfile) {
+    this.packProfile = packProfile;
+    return this;
+  }
+
+  /**
+   * Mine projects, their rq3 counts are added to rq3. Projects next to each
+   * other with the same PackProfile are mined at the same time, the stages
+   * are drained before the next profile is installed.
+   */
+  public void run(List<String> projects, RQ3 rq3) throws Exception {
+    int from = 0;
+    while (from < projects.size()) {
+      PackProfile profile = PackProfile.of(projects.get(from), packProfile);
+      int to = from + 1;
+      while (to < projects.size() &&
+          PackProfile.of(projects.get(to), packProfile) == profile)
+        to++;
+      List<String> group = projects.subList(from, to);
+      profile.install();
+      mine(group, rq3);
+      PackProfile.logStats(group.size() == 1 ? group.get(0) :
+          group.get(0) + ".." + group.get(group.size() - 1));
+      from = to;
+    }
+  }
+
+  private void mine(List<String> projects, RQ3 rq3) throws Exception {
+    List<Project> list = new ArrayList<>();
+    BlockingQueue<Item> commits = new ArrayBlockingQueue<>(queueSize);
+    BlockingQueue<Item> diffs = new ArrayBlockingQueue<>(queueSize);
+    BlockingQueue<Item> results = new LinkedBlockingQueue<>();
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    AtomicInteger diffsLeft = new AtomicInteger(diffThreads);
+    AtomicInteger featuresLeft = new AtomicInteger(featureThreads);
+
+    // producer, writer and the pools
+    int tasks = 2 + diffThreads + featureThreads;
+    ExecutorService pool = Executors.newFixedThreadPool(tasks);
+    CompletionService<Void> cs = new ExecutorCompletionService<>(pool);
+    Metrics.gauge("mine.queue.commits", commits::size);
+    Metrics.gauge("mine.queue.diffs", diffs::size);
+    Metrics.gauge("mine.queue.results", results::size);
+    Metrics.gauge("mine.inFlight",
+        () -> maxInFlight - inFlight.availablePermits());
+    try {
+      for (String project : projects)
+        list.add(new Project(project, rq3));
+
+      cs.submit(() -> {
+        produce(list, commits, inFlight);
+        return null;
+      });
+      for (int i = 0; i < diffThreads; i++)
+        cs.submit(() -> {
+          diff(commits, diffs);
+          if (diffsLeft.decrementAndGet() == 0)
+            for (int j = 0; j < featureThreads; j++) diffs.put(END);
+          return null;
+        });
+      for (int i = 0; i < featureThreads; i++)
+        cs.submit(() -> {
+          feature(diffs, results);
+          if (featuresLeft.decrementAndGet() == 0) results.put(END);
+          return null;
+        });
+      cs.submit(() -> {
+        write(results, inFlight, rq3);
+        return null;
+      });
+      // the first failure stops all stages
+      for (int i = 0; i < tasks; i++)
+        cs.take().get();
+    } finally {
+      for (String name : Arrays.asList("mine.queue.commits",
+          "mine.queue.diffs", "mine.queue.results", "mine.inFlight"))
+        Metrics.removeGauge(name);
+      pool.shutdownNow();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+      for (Project p : list)
+        if (p.repo != null) p.repo.close();
+    }
+  }
+
+  private void produce(List<Project> projects, BlockingQueue<Item> commits,
+                       Semaphore inFlight) throws Exception {
+    long seq = 0;
+    for (Project p : projects) {
+      Git git = new Git(p.repo);
+      for (RevCommit commit : GitLogParser.log(git, p.head, p.checkpoint)) {
+        inFlight.acquire();
+        commits.put(new Item(p, seq++, commit));
+      }
+      git.close();
+      inFlight.acquire();
+      commits.put(new Item(p, seq++, null));
+    }
+    for (int i = 0; i < diffThreads; i++) commits.put(END);
+  }
+
+  private void diff(BlockingQueue<Item> commits, BlockingQueue<Item> diffs)
+      throws Exception {
+    // projects come in order, the JGitDiff of the last one is closed
+    // when the next one comes, with its cached delta bases, and its
+    // repository may be closed then
+    Project diffProject = null;
+    JGitDiff jgitDiff = null;
+    // a diff past Config.diffBufferBytes is extracted here as it is read
+    Item[] current = new Item[1];
+    FeatureExtractor extractor = new FeatureExtractor(
+        classId -> current[0].hit(classId, true),
+        classId -> current[0].hit(classId, false));
+    LineDecoder decoder = new LineDecoder(extractor);
+    try {
+      Item item;
+      while ((item = commits.take()) != END) {
+        if (item.commit != null) {
+          long start = System.nanoTime();
+          Project p = item.project;
+          current[0] = item;
+          item.feature = new Feature();
+          item.diff = buffers.poll();
+          if (item.diff == null) item.diff = new DiffBuffer(8192);
+          item.diff.reset(item.feature, extractor, decoder);
+          if (diffMode == DiffMode.JGit) {
+            if (p != diffProject) {
+              if (jgitDiff != null) {
+                jgitDiff.close();
+                diffProject.release();
+              }
+              jgitDiff = null;
+              p.use();
+              diffProject = p;
+              jgitDiff = new JGitDiff(p.repo);
+            }
+            jgitDiff.show(item.commit, item.diff);
+          } else {
+            String cmd = "git show " + item.commit.name() + pathspecs;
+            int exit = Execute.exec(cmd, p.dir, Execute.timeout,
+                item.diff::readFrom);
+            if (exit != 0)
+              throw new IOException(cmd + " exit " + exit + " in " + p.dir);
+          }
+          FETCH.since(start);
+          DIFF_BYTES.add(item.diff.written());
+          if (item.diff.isSpilled()) {
+            item.diff.extract(item.feature, extractor, decoder);
+            buffers.add(item.diff);
+            item.diff = null;
+          }
+        }
+        diffs.put(item);
+      }
+    } finally {
+      if (jgitDiff != null) jgitDiff.close();
+      if (diffProject != null) diffProject.release();
+    }
+  }
+
+  private void feature(BlockingQueue<Item> diffs, BlockingQueue<Item> results)
+      throws Exception {
+    Item[] current = new Item[1];
+    FeatureExtractor extractor = new FeatureExtractor(
+        classId -> current[0].hit(classId, true),
+        classId -> current[0].hit(classId, false));
+    LineDecoder decoder = new LineDecoder(extractor);
+    Item item;
+    while ((item = diffs.take()) != END) {
+      if (item.commit != null) {
+        long start = System.nanoTime();
+        Feature f = item.feature;
+        // null if extracted by the diff stage
+        if (item.diff != null) {
+          current[0] = item;
+          item.diff.extract(f, extractor, decoder);
+          buffers.add(item.diff);
+          item.diff = null;
+        }
+        item.selected = f.related() &&
+            (classifier == null || classifier.predict(f));
+        MATCH.since(start);
+      }
+      results.put(item);
+    }
+  }
+
+  /**
+   * Apply results in the order of seq
+   */
+  private void write(BlockingQueue<Item> results, Semaphore inFlight,
+                     RQ3 rq3) throws Exception {
+    Map<Long, Item> pending = new HashMap<>();
+    long next = 0;
+    Item item;
+    while ((item = results.take()) != END) {
+      pending.put(item.seq, item);
+      while ((item = pending.remove(next)) != null) {
+        long start = System.nanoTime();
+        apply(item, rq3);
+        WRITE.since(start);
+        inFlight.release();
+        next++;
+      }
+    }
+    if (!pending.isEmpty())
+      throw new IllegalStateException(pending.size() + " commits not written");
+  }
+
+  private void apply(Item item, RQ3 rq3) throws Exception {
+    Project p = item.project;
+    RevCommit commit = item.commit;
+    if (commit == null) {
+      finish(p, rq3);
+      return;
+    }
+    p.commitCount++;
+    COMMITS.increment();
+    int time = commit.getCommitTime();
+    for (int i = 0; i < item.hitCount; i++) {
+      int hit = item.hits[i];
+      p.rq3.add(hit >> 1, (hit & 1) == 1, time);
+    }
+    if (item.selected) {
+      p.relatedCommitCount++;
+      p.store.add(commit, time, item.feature);
+    }
+    if (taskType == TaskType.ChangeByTime)
+      p.rq2.deal(commit, item.feature);
+    p.checkpoint.add(commit, item.feature);
+  }
+
+  private void finish(Project p, RQ3 rq3) throws Exception {
+    Util.log(p.name + ' ' + p.commitCount + " commits, " +
+        p.relatedCommitCount + " related");
+    p.store.save(GitLogParser.storeFile(p.name));
+    int storeRows = p.store.rows();
+    p.store = null;
+    p.checkpoint.save(p.head, p.rq3, storeRows);
+    rq3.merge(p.rq3);
+    if (taskType == TaskType.ChangeByTime) p.rq2.finish();
+    // all its commits are diffed, its packs go when no diff thread reads
+    // them
+    p.release();
+  }
+
+  /**
+   * Repository and mining state of a project
+   */
+  private class Project {
+    String name, dir;
+    Repository repo;
+    ObjectId head;
+    Checkpoint checkpoint;
+    FeatureStore store;
+    RQ2ChangeByTime rq2;
+    RQ3 rq3;
+    int commitCount, relatedCommitCount;
+    // the writer and the diff threads with a JGitDiff of repo
+    private int readers = 1;
+
+    Project(String name, RQ3 allRq3) throws Exception {
+      this.name = name;
+      dir = GitLogParser.projectDir(name);
+      repo = GitLogParser.openRepository(name);
+      head = repo.resolve(Constants.HEAD);
+      rq2 = new RQ2ChangeByTime(name);
+      // a full run resets the checkpoint, like GitLogParser.parse
+      checkpoint = new Checkpoint(name);
+      if (incremental) checkpoint.check(repo, head);
+      else checkpoint.reset();
+      store = checkpoint.storeRows() == 0 ? new FeatureStore(name) :
+          FeatureStore.open(GitLogParser.storeFile(name), name)
+              .truncate(checkpoint.storeRows());
+      rq3 = checkpoint.rq3();
+      if (taskType == TaskType.ChangeByTime)
+        checkpoint.forEach(rq2::deal);
+    }
+
+    synchronized void use() {
+      readers++;
+    }
+
+    /**
+     * Close repo after the last reader of it
+     */
+    synchronized void release() {
+      if (--readers > 0) return;
+      repo.close();
+      PackProfile.checkReleased(name, repo);
+      repo = null;
+    }
+  }
+
+  /**
+   * A commit going through the stages, a null commit ends its project
+   */
+  private static class Item {
+    final Project project;
+    final long seq;
+    final RevCommit commit;
+    DiffBuffer diff;
+    Feature feature;
+    boolean selected;
+    // classId << 1 | add, in the order of the keywords
+    int[] hits = new int[16];
+    int hitCount;
+
+    Item(Project project, long seq, RevCommit commit) {
+      this.project = project;
+      this.seq = seq;
+      this.commit = commit;
+    }
+
+    void hit(int classId, boolean add) {
+      if (hitCount == hits.length) hits = Arrays.copyOf(hits, hitCount * 2);
+      hits[hitCount++] = classId << 1 | (add ? 1 : 0);
+    }
+  }
+}
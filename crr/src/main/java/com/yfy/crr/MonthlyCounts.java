@@ -0,0 +1,105 @@
+package com.yfy.crr;
+
+import java.time.LocalDate;
+
+/**
+ * Counts of keys by month, in int arrays indexed by (key, month - first
+ * month). A month is year * 12 + month of year (1 to 12) in UTC.
+ *
+ * Not thread safe, threads count into their own instances and merge.
+ */
+public class MonthlyCounts {
+
+  // months added around the range on growth
+  private static final int SLACK = 24;
+
+  private int[][] counts;
+
+  // month of index 0, month after the last index
+  private int first, end;
+
+  // the month of the last time, commits come in time order
+  private long monthStart = Long.MAX_VALUE, monthEnd = Long.MIN_VALUE;
+
+  private int month;
+
+  public MonthlyCounts(int keys) {
+    counts = new int[keys][0];
+  }
+
+  /**
+   * Month of a commit time in seconds
+   */
+  public int month(long time) {
+    if (time < monthStart || time >= monthEnd) {
+      LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(time, 86400L));
+      LocalDate start = date.withDayOfMonth(1);
+      monthStart = start.toEpochDay() * 86400;
+      monthEnd = start.plusMonths(1).toEpochDay() * 86400;
+      month = date.getYear() * 12 + date.getMonthValue();
+    }
+    return month;
+  }
+
+  public static int year(int month) {
+    return Math.floorDiv(month - 1, 12);
+  }
+
+  public static int monthOfYear(int month) {
+    return Math.floorMod(month - 1, 12) + 1;
+  }
+
+  public void add(int key, int month, int n) {
+    if (month < first || month >= end) grow(month);
+    counts[key][month - first] += n;
+  }
+
+  public int get(int key, int month) {
+    return month < first || month >= end ? 0 : counts[key][month - first];
+  }
+
+  public int keys() {
+    return counts.length;
+  }
+
+  /**
+   * Range of months that may have counts, [firstMonth, endMonth)
+   */
+  public int firstMonth() {
+    return first;
+  }
+
+  public int endMonth() {
+    return end;
+  }
+
+  public void merge(MonthlyCounts other) {
+    for (int key = 0; key < other.counts.length; key++) {
+      int[] from = other.counts[key];
+      for (int i = 0; i < from.length; i++)
+        if (from[i] != 0)
+          add(key, other.first + i, from[i]);
+    }
+  }
+
+  private void grow(int month) {
+    int newFirst, newEnd;
+    if (first == end) {
+      newFirst = month - SLACK;
+      newEnd = month + SLACK;
+    } else {
+      int slack = Math.max(SLACK, (end - first) / 2);
+      newFirst = month < first ? month - slack : first;
+      newEnd = month >= end ? month + slack : end;
+    }
+    for (int key = 0; key < counts.length; key++) {
+      int[] grown = new int[newEnd - newFirst];
+      int[] old = counts[key];
+      if (old.length > 0)
+        System.arraycopy(old, 0, grown, first - newFirst, old.length);
+      counts[key] = grown;
+    }
+    first = newFirst;
+    end = newEnd;
+  }
+}
@@ -2,7 +2,6 @@ package com.yfy.crr;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
-import java.sql.ResultSet;
 import java.sql.Statement;
 
 /**
@@ -13,25 +12,34 @@ public class MysqlDb {
   private Connection conn;
 
   public MysqlDb() throws Exception {
-    conn = DriverManager.getConnection("jdbc:mysql://localhost/crr?user=root");
+    conn = DriverManager.getConnection(Config.mysqlUrl);
   }
 
-  public ResultSet readFile1() throws Exception {
+  public PairStream readFile1() throws Exception {
+    return new PairStream(streaming(), "select file1 from pair");
+  }
+
+  public PairStream readPair() throws Exception {
+    return new PairStream(streaming(), "select file1, file2 from pair;");
+  }
+
+  /**
+   * A statement that gets rows from the server one by one
+   */
+  private Statement streaming() throws Exception {
     Statement sm = conn.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY,
         java.sql.ResultSet.CONCUR_READ_ONLY);
     sm.setFetchSize(Integer.MIN_VALUE);
-    return sm.executeQuery("select file1 from pair");
+    return sm;
   }
 
   public void read() throws Exception {
-    Statement sm = conn.createStatement(java.sql.ResultSet.TYPE_FORWARD_ONLY,
-        java.sql.ResultSet.CONCUR_READ_ONLY);
-    sm.setFetchSize(Integer.MIN_VALUE);
-    ResultSet rs = sm.executeQuery("select file1, file2 from pair;");
+    PairStream pairs = readPair();
     int count = 0;
-    while (rs.next()) {
+    while (pairs.next()) {
       Util.log(++count);
     }
+    pairs.close();
   }
 
 }
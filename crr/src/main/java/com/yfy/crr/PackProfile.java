@@ -0,0 +1,137 @@
+package com.yfy.crr;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.file.WindowCacheStats;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * How JGit reads pack files when mining: mmap or read of the packs, size
+ * of a window of a pack, bytes of windows and number of packs kept open,
+ * bytes of delta bases cached by each reader. There is one window cache
+ * in the jvm and install() replaces it, dropping every cached window, so
+ * a profile holds for the projects mined while it is installed, see
+ * Config.packProfiles.
+ *
+ * new PackProfile().setWindowSize(...).install(); ... logStats(project);
+ */
+public class PackProfile {
+
+  // registered once, read from the cache installed at the time of a report
+  static {
+    Metrics.gauge("jgit.window.hits",
+        () -> WindowCacheStats.getStats().getHitCount());
+    Metrics.gauge("jgit.window.misses",
+        () -> WindowCacheStats.getStats().getMissCount());
+    Metrics.gauge("jgit.window.evictions",
+        () -> WindowCacheStats.getStats().getEvictionCount());
+    Metrics.gauge("jgit.window.openFiles",
+        () -> WindowCacheStats.getStats().getOpenFileCount());
+    Metrics.gauge("jgit.window.openBytes",
+        () -> WindowCacheStats.getStats().getOpenByteCount());
+  }
+
+  private boolean mmap = true;
+
+  private int windowSize = 1 << 20;
+
+  private long limit = 512L << 20;
+
+  private int openFiles = 256;
+
+  private int deltaBaseCacheLimit = 32 << 20;
+
+  // larger objects are streamed, not inflated into one array
+  private int streamFileThreshold = 50 << 20;
+
+  public PackProfile setMmap(boolean mmap) {
+    this.mmap = mmap;
+    return this;
+  }
+
+  /**
+   * Bytes of a window, a power of 2 of at least 4KB
+   */
+  public PackProfile setWindowSize(int windowSize) {
+    this.windowSize = windowSize;
+    return this;
+  }
+
+  /**
+   * Bytes of all the windows in the cache
+   */
+  public PackProfile setLimit(long limit) {
+    this.limit = limit;
+    return this;
+  }
+
+  public PackProfile setOpenFiles(int openFiles) {
+    this.openFiles = openFiles;
+    return this;
+  }
+
+  /**
+   * Bytes of the delta base cache of each ObjectReader, so of each thread
+   */
+  public PackProfile setDeltaBaseCacheLimit(int deltaBaseCacheLimit) {
+    this.deltaBaseCacheLimit = deltaBaseCacheLimit;
+    return this;
+  }
+
+  public PackProfile setStreamFileThreshold(int streamFileThreshold) {
+    this.streamFileThreshold = streamFileThreshold;
+    return this;
+  }
+
+  /**
+   * Profile of a project in the sequential run, the run profile if it has
+   * none in Config.packProfiles
+   */
+  public static PackProfile of(String project, PackProfile run) {
+    PackProfile profile = Config.packProfiles.get(project);
+    return profile != null ? profile : run;
+  }
+
+  /**
+   * Replace the window cache of the jvm with a new one of this profile,
+   * its counters start from 0
+   */
+  public void install() {
+    WindowCacheConfig config = new WindowCacheConfig();
+    config.setPackedGitMMAP(mmap);
+    config.setPackedGitWindowSize(windowSize);
+    config.setPackedGitLimit(limit);
+    config.setPackedGitOpenFiles(openFiles);
+    config.setDeltaBaseCacheLimit(deltaBaseCacheLimit);
+    config.setStreamFileThreshold(streamFileThreshold);
+    config.install();
+  }
+
+  /**
+   * Log the hit ratio of the window cache since install() or the last
+   * call, and what is still open
+   */
+  public static void logStats(String name) {
+    WindowCacheStats stats = WindowCacheStats.getStats();
+    Util.log(String.format("%s pack windows: hit %.1f%% of %d, " +
+            "%d evictions, load %.2fms avg, %d packs %dMB open", name,
+        stats.getHitRatio() * 100, stats.getRequestCount(),
+        stats.getEvictionCount(), stats.getAverageLoadTime() / 1e6,
+        stats.getOpenFileCount(), stats.getOpenByteCount() >> 20));
+    stats.resetCounters();
+  }
+
+  /**
+   * Log if packs of a closed repository are still open in the cache
+   */
+  public static void checkReleased(String name, Repository repo) {
+    File dir = repo.getDirectory().getAbsoluteFile();
+    for (Map.Entry<String, Long> e : WindowCacheStats.getStats()
+        .getOpenByteCountPerRepository().entrySet())
+      if (e.getValue() > 0 && new File(e.getKey()).getAbsoluteFile().equals(dir))
+        Util.log("[Error] " + name + ": " + (e.getValue() >> 10) +
+            "KB of packs still open after close");
+  }
+}
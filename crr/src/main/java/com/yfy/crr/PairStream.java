@@ -0,0 +1,79 @@
+package com.yfy.crr;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Rows of (file1, file2) read lazily from a query, a few rows at a time.
+ * The content of a row is read as a stream, valid until the next call of
+ * next(). A query of only file1 works too. With a BlobStore the columns
+ * are hashes of blobs, inflated when read.
+ *
+ * while (pairs.next()) { pairs.file1() ... pairs.file2() ... }
+ */
+public class PairStream implements AutoCloseable {
+
+  private Statement sm;
+
+  private ResultSet rs;
+
+  private BlobStore blobs;
+
+  public PairStream(Statement sm, String sql) throws SQLException {
+    this(sm, sql, null);
+  }
+
+  public PairStream(Statement sm, String sql, BlobStore blobs)
+      throws SQLException {
+    this.sm = sm;
+    this.blobs = blobs;
+    rs = sm.executeQuery(sql);
+  }
+
+  public boolean next() throws SQLException {
+    return rs.next();
+  }
+
+  public Reader file1() throws Exception {
+    return reader(1);
+  }
+
+  public Reader file2() throws Exception {
+    return reader(2);
+  }
+
+  /**
+   * Content of column of the row, empty if null
+   */
+  public Reader reader(int column) throws Exception {
+    if (blobs != null) {
+      byte[] hash = rs.getBytes(column);
+      return hash == null ? new StringReader("") : blobs.reader(hash);
+    }
+    Reader reader = rs.getCharacterStream(column);
+    return reader == null ? new StringReader("") : reader;
+  }
+
+  /**
+   * Content of column of the row, for when a whole String is needed
+   */
+  public String string(int column) throws Exception {
+    Reader reader = reader(column);
+    StringBuilder sb = new StringBuilder();
+    char[] buf = new char[8192];
+    int n;
+    while ((n = reader.read(buf)) != -1)
+      sb.append(buf, 0, n);
+    reader.close();
+    return sb.toString();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    rs.close();
+    sm.close();
+  }
+}
@@ -0,0 +1,101 @@
+package com.yfy.crr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * File paths matching one of the include globs (all paths if none) and
+ * none of the exclude globs. Globs are like glob pathspecs of git, "*" and
+ * "?" stop at "/", "**" does not, "src/test/**" is everything under
+ * src/test.
+ */
+public class PathGlobFilter implements Predicate<String> {
+
+  private List<Pattern> includes, excludes;
+
+  private List<String> includeGlobs, excludeGlobs;
+
+  public PathGlobFilter(List<String> includes, List<String> excludes) {
+    includeGlobs = includes;
+    excludeGlobs = excludes;
+    this.includes = compile(includes);
+    this.excludes = compile(excludes);
+  }
+
+  /**
+   * Java files of Config.diffIncludes and not of Config.diffExcludes, the
+   * files mined of a commit
+   */
+  public static Predicate<String> mined() {
+    if (Config.diffIncludes.isEmpty() && Config.diffExcludes.isEmpty())
+      return path -> path.endsWith(".java");
+    PathGlobFilter globs =
+        new PathGlobFilter(Config.diffIncludes, Config.diffExcludes);
+    return path -> path.endsWith(".java") && globs.test(path);
+  }
+
+  /**
+   * Pathspecs of Config.diffIncludes and Config.diffExcludes for "git
+   * show", empty if there are none. With --sparse a commit changing none
+   * of the paths is shown too, its header still counts.
+   */
+  public static String pathspecs() {
+    StringBuilder sb = new StringBuilder();
+    for (String glob : Config.diffIncludes)
+      sb.append(" :(glob)").append(glob);
+    for (String glob : Config.diffExcludes)
+      sb.append(" :(glob,exclude)").append(glob);
+    return sb.length() == 0 ? "" : " --sparse --" + sb;
+  }
+
+  /**
+   * If the file path is included and not excluded
+   */
+  @Override
+  public boolean test(String path) {
+    for (Pattern p : excludes)
+      if (p.matcher(path).matches()) return false;
+    if (includes.isEmpty()) return true;
+    for (Pattern p : includes)
+      if (p.matcher(path).matches()) return true;
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "PathGlobFilter(" + includeGlobs + ", " + excludeGlobs + ")";
+  }
+
+  private static List<Pattern> compile(List<String> globs) {
+    List<Pattern> patterns = new ArrayList<>();
+    for (String glob : globs)
+      patterns.add(compile(glob));
+    return patterns;
+  }
+
+  static Pattern compile(String glob) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' && glob.startsWith("**/", i)) {
+        // no or any directories
+        sb.append("(.*/)?");
+        i += 2;
+      } else if (c == '*' && glob.startsWith("**", i)) {
+        sb.append(".*");
+        i++;
+      } else if (c == '*') {
+        sb.append("[^/]*");
+      } else if (c == '?') {
+        sb.append("[^/]");
+      } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+        sb.append('\\').append(c);
+      } else {
+        sb.append(c);
+      }
+    }
+    return Pattern.compile(sb.toString());
+  }
+}
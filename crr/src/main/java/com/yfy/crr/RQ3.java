@@ -1,69 +1,92 @@
 package com.yfy.crr;
 
-import org.eclipse.jgit.revwalk.RevCommit;
-
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.List;
 
 /**
  * Created by yfy on 2017/3/10.
  */
 public class RQ3 {
-  // key, time, count
-  private Map<String, Map<Integer, Integer>> addMap, minusMap;
+  private List<String> classes = ConcurrentKeywords.classList;
+
+  // class id, month, count
+  private MonthlyCounts addCounts, minusCounts;
 
   public RQ3() {
-    addMap = new HashMap<>();
-    minusMap = new HashMap<>();
+    addCounts = new MonthlyCounts(classes.size());
+    minusCounts = new MonthlyCounts(classes.size());
   }
 
-  public void add(String word, boolean add, RevCommit commit) {
-    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-    long time = commit.getCommitTime();
-    String date = format.format(new Date(time * 1000));
-    String[] strs = date.split("-");
-    int year = Integer.parseInt(strs[0]);
-    int month = Integer.parseInt(strs[1]);
-    int monthId = year * 12 + month;
+  /**
+   * @param classId index in ConcurrentKeywords.classList
+   * @param time commit time in seconds
+   */
+  public void add(int classId, boolean add, long time) {
+    MonthlyCounts counts = add ? addCounts : minusCounts;
+    counts.add(classId, counts.month(time), 1);
+  }
 
-    if (add) {
-      Map<Integer, Integer> map = addMap.get(word);
-      if (map == null) {
-        map = new TreeMap<>();
-        addMap.put(word, map);
-      }
-      map.put(monthId, map.getOrDefault(monthId, 0) + 1);
-    } else {
-      Map<Integer, Integer> map = minusMap.get(word);
-      if (map == null) {
-        map = new TreeMap<>();
-        minusMap.put(word, map);
-      }
-      map.put(monthId, map.getOrDefault(monthId, 0) + 1);
-    }
+  /**
+   * Add counts of another RQ3, used to join parallel miners
+   */
+  public void merge(RQ3 other) {
+    addCounts.merge(other.addCounts);
+    minusCounts.merge(other.minusCounts);
   }
 
   public void print() throws Exception {
-    for (String key : addMap.keySet()) {
-      String filename  = "rq3" + File.separator + key + " add";
-      PrintWriter pw = new PrintWriter(filename);
-      Map<Integer, Integer> map = addMap.get(key);
-      for (int time : map.keySet())
-        pw.println(time + " " + map.get(time));
-      pw.close();
+    print("rq3");
+  }
+
+  /**
+   * Write a "key add" and a "key minus" file for each key into dir
+   */
+  public void print(String dir) throws Exception {
+    print(dir, addCounts, " add");
+    print(dir, minusCounts, " minus");
+  }
+
+  private void print(String dir, MonthlyCounts counts, String suffix)
+      throws Exception {
+    for (int key = 0; key < counts.keys(); key++) {
+      PrintWriter pw = null;
+      for (int month = counts.firstMonth(); month < counts.endMonth(); month++) {
+        int count = counts.get(key, month);
+        if (count == 0) continue;
+        if (pw == null)
+          pw = new PrintWriter(dir + File.separator + classes.get(key) + suffix);
+        pw.println(month + " " + count);
+      }
+      if (pw != null) pw.close();
     }
-    for (String key : minusMap.keySet()) {
-      String filename  = "rq3" + File.separator + key + " minus";
-      PrintWriter pw = new PrintWriter(filename);
-      Map<Integer, Integer> map = minusMap.get(key);
-      for (int time : map.keySet())
-        pw.println(time + " " + map.get(time));
-      pw.close();
+  }
+
+  /**
+   * Read the files written by print(dir)
+   */
+  public static RQ3 load(String dir) throws Exception {
+    RQ3 rq3 = new RQ3();
+    File[] files = new File(dir).listFiles();
+    if (files == null) return rq3;
+    for (File file : files) {
+      String name = file.getName();
+      int space = name.lastIndexOf(' ');
+      if (space < 0) continue;
+      int key = rq3.classes.indexOf(name.substring(0, space));
+      if (key < 0) continue;
+      boolean add = name.substring(space + 1).equals("add");
+      MonthlyCounts counts = add ? rq3.addCounts : rq3.minusCounts;
+      BufferedReader br = new BufferedReader(new FileReader(file));
+      String line;
+      while ((line = br.readLine()) != null) {
+        String[] strs = line.split(" ");
+        counts.add(key, Integer.parseInt(strs[0]), Integer.parseInt(strs[1]));
+      }
+      br.close();
     }
+    return rq3;
   }
 }
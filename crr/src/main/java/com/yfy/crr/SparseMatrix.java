@@ -0,0 +1,88 @@
+package com.yfy.crr;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Rows of sparse double vectors in primitive arrays, the columns and
+ * values of row r are at [rowStart[r], rowStart[r + 1]).
+ *
+ * file  rows, columns, then for each row: count, (column, value) pairs
+ */
+public class SparseMatrix {
+
+  public final int rows, columns;
+
+  public final int[] rowStart;
+
+  public final int[] cols;
+
+  public final double[] values;
+
+  // squared norm of each row
+  public final double[] norms;
+
+  private SparseMatrix(int rows, int columns, int[] rowStart, int[] cols,
+                       double[] values) {
+    this.rows = rows;
+    this.columns = columns;
+    this.rowStart = rowStart;
+    this.cols = cols;
+    this.values = values;
+    norms = new double[rows];
+    for (int r = 0; r < rows; r++)
+      for (int j = rowStart[r]; j < rowStart[r + 1]; j++)
+        norms[r] += values[j] * values[j];
+  }
+
+  public static void writeHeader(DataOutput out, int rows, int columns)
+      throws IOException {
+    out.writeInt(rows);
+    out.writeInt(columns);
+  }
+
+  public static void writeRow(DataOutput out, int[] cols, double[] values,
+                              int length) throws IOException {
+    out.writeInt(length);
+    for (int j = 0; j < length; j++) {
+      out.writeInt(cols[j]);
+      out.writeDouble(values[j]);
+    }
+  }
+
+  public static SparseMatrix load(File file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file), 1 << 16))) {
+      int rows = in.readInt();
+      int columns = in.readInt();
+      int[] rowStart = new int[rows + 1];
+      int[] cols = new int[Math.max(16, rows)];
+      double[] values = new double[cols.length];
+      int size = 0;
+      for (int r = 0; r < rows; r++) {
+        int length = in.readInt();
+        if (size + length > cols.length) {
+          int capacity = Math.max(size + length, cols.length * 2);
+          cols = Arrays.copyOf(cols, capacity);
+          values = Arrays.copyOf(values, capacity);
+        }
+        for (int j = 0; j < length; j++) {
+          cols[size] = in.readInt();
+          values[size++] = in.readDouble();
+        }
+        rowStart[r + 1] = size;
+      }
+      return new SparseMatrix(rows, columns, rowStart, cols, values);
+    }
+  }
+
+  /**
+   * Dot product of row r and a dense vector
+   */
+  public double dot(int r, double[] dense) {
+    double sum = 0;
+    for (int j = rowStart[r]; j < rowStart[r + 1]; j++)
+      sum += values[j] * dense[cols[j]];
+    return sum;
+  }
+}
@@ -0,0 +1,109 @@
+package com.yfy.crr;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton of ascii keys over bytes. Finds every key in a
+ * text in one pass, overlapping keys included, like calling contains for
+ * each key. Text is bytes or chars. A byte over 127 is never in a key, so
+ * utf-8 text can be matched without decoding.
+ */
+public class SubstringMatcher {
+
+  private static final int ALPHABET = 128;
+
+  // state * ALPHABET + byte -> next state, goto and fail links folded in
+  private int[] next;
+
+  // keys that end at a state, fail chain included, null if none
+  private int[][] outputs;
+
+  public SubstringMatcher(List<String> keys) {
+    int states = 1;
+    for (String key : keys) states += key.length();
+    next = new int[states * ALPHABET];
+    Arrays.fill(next, -1);
+    int[][] out = new int[states][];
+    int count = 1;
+
+    for (int k = 0; k < keys.size(); k++) {
+      String key = keys.get(k);
+      int state = 0;
+      for (int i = 0; i < key.length(); i++) {
+        char c = key.charAt(i);
+        if (c == 0 || c >= ALPHABET)
+          throw new IllegalArgumentException("Not ascii: " + key);
+        if (next[state * ALPHABET + c] < 0)
+          next[state * ALPHABET + c] = count++;
+        state = next[state * ALPHABET + c];
+      }
+      out[state] = append(out[state], k);
+    }
+
+    // breadth first, fail of a state is known before its children
+    int[] fail = new int[count];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int c = 0; c < ALPHABET; c++) {
+      int child = next[c];
+      if (child < 0) {
+        next[c] = 0;
+      } else {
+        fail[child] = 0;
+        queue.add(child);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.poll();
+      int[] failOut = out[fail[state]];
+      if (failOut != null)
+        for (int k : failOut) out[state] = append(out[state], k);
+      for (int c = 0; c < ALPHABET; c++) {
+        int child = next[state * ALPHABET + c];
+        int failNext = next[fail[state] * ALPHABET + c];
+        if (child < 0) {
+          next[state * ALPHABET + c] = failNext;
+        } else {
+          fail[child] = failNext;
+          queue.add(child);
+        }
+      }
+    }
+    next = Arrays.copyOf(next, count * ALPHABET);
+    outputs = Arrays.copyOf(out, count);
+  }
+
+  private static int[] append(int[] keys, int key) {
+    if (keys == null) return new int[]{key};
+    int[] result = Arrays.copyOf(keys, keys.length + 1);
+    result[keys.length] = key;
+    return result;
+  }
+
+  public int start() {
+    return 0;
+  }
+
+  /**
+   * State after byte b, bytes over 127 go back to the start
+   */
+  public int next(int state, byte b) {
+    return b < 0 ? 0 : next[state * ALPHABET + b];
+  }
+
+  /**
+   * State after char c, chars over 127 go back to the start
+   */
+  public int next(int state, char c) {
+    return c >= ALPHABET ? 0 : next[state * ALPHABET + c];
+  }
+
+  /**
+   * Keys that end at state, null if none
+   */
+  public int[] outputs(int state) {
+    return outputs[state];
+  }
+}
@@ -0,0 +1,120 @@
+package com.yfy.crr;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Training set of directories of labelled diffs (svm2/p, svm2/n). Files
+ * are read on a ForkJoinPool, large ones memory mapped, and the feature
+ * of each is extracted in one pass without rq3 listeners, so nothing of
+ * mining is touched. Rows are in the order of the directories, then of
+ * the file names.
+ *
+ * new TrainingSetBuilder().add(p, 1).add(n, 0).build().write(file)
+ */
+public class TrainingSetBuilder {
+  // files from this size are memory mapped, smaller ones are read
+  private static final int MAP_SIZE = 1 << 16;
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  private List<File> files = new ArrayList<>();
+
+  private List<Integer> labels = new ArrayList<>();
+
+  private List<Feature> features;
+
+  private ThreadLocal<Extractor> extractor =
+      ThreadLocal.withInitial(Extractor::new);
+
+  public TrainingSetBuilder setThreads(int threads) {
+    this.threads = threads;
+    return this;
+  }
+
+  /**
+   * Every file of dir, labelled label
+   */
+  public TrainingSetBuilder add(File dir, int label) throws IOException {
+    File[] list = dir.listFiles();
+    if (list == null) throw new FileNotFoundException(dir.toString());
+    Arrays.sort(list);
+    for (File file : list)
+      if (file.isFile()) {
+        files.add(file);
+        labels.add(label);
+      }
+    return this;
+  }
+
+  public TrainingSetBuilder build() throws Exception {
+    Feature[] result = new Feature[files.size()];
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.submit(() -> IntStream.range(0, result.length).parallel()
+          .forEach(i -> result[i] = extractor.get().extract(files.get(i))))
+          .get();
+    } finally {
+      pool.shutdown();
+    }
+    features = Arrays.asList(result);
+    return this;
+  }
+
+  public List<Feature> features() {
+    return features;
+  }
+
+  public List<Integer> labels() {
+    return labels;
+  }
+
+  /**
+   * Rows of "label feature" like svm2/train
+   */
+  public void write(File file) throws IOException {
+    PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+    for (int i = 0; i < features.size(); i++)
+      pw.println(labels.get(i) + " " + features.get(i).toStr());
+    pw.close();
+  }
+
+  /**
+   * Extractor of one thread
+   */
+  private static class Extractor {
+    FeatureExtractor extractor = new FeatureExtractor(null, null);
+
+    LineDecoder decoder = new LineDecoder(extractor);
+
+    ByteBuffer buffer = ByteBuffer.allocate(MAP_SIZE);
+
+    Feature extract(File file) {
+      extractor.begin(new Feature());
+      try (FileChannel channel = FileChannel.open(file.toPath(),
+          StandardOpenOption.READ)) {
+        long size = channel.size();
+        if (size >= MAP_SIZE) {
+          decoder.write(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } else {
+          buffer.clear();
+          while (buffer.hasRemaining())
+            if (channel.read(buffer) == -1) break;
+          buffer.flip();
+          decoder.write(buffer);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      decoder.finish();
+      return extractor.end();
+    }
+  }
+}
@@ -1,7 +1,27 @@
 package com.yfy.crr;
 
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.util.FileUtils;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * Created by yfy on 10/22/16.
  */
@@ -12,6 +32,112 @@ public class CrrTest {
     parser.parseAll();
   }
 
+  @Test
+  public void gitLogParserGitShow() throws Exception {
+    new GitLogParser().setDiffMode(DiffMode.GitShow).parseAll();
+  }
+
+  @Test
+  public void gitLogParserJGit() throws Exception {
+    new GitLogParser().setDiffMode(DiffMode.JGit).parseAll();
+  }
+
+  /**
+   * Feature of JGitDiff the same as of git show for renames between java
+   * and other files
+   */
+  @Test
+  public void jgitDiffRename() throws Exception {
+    File dir = Files.createTempDirectory("crr-rename").toFile();
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      StringBuilder a = new StringBuilder(), b = new StringBuilder();
+      for (int i = 0; i < 20; i++) {
+        a.append("int a").append(i).append(" = ").append(i).append(";\n");
+        b.append("long b").append(i).append(" = ").append(i).append(";\n");
+      }
+      write(dir, "A.txt", a + "int a = 1;\n");
+      write(dir, "B.java", b + "long b = 1;\n");
+      git.add().addFilepattern(".").call();
+      git.commit().setMessage("add").call();
+      // A.txt to A.java and B.java to B.txt, one line changed in each
+      new File(dir, "A.txt").delete();
+      new File(dir, "B.java").delete();
+      write(dir, "A.java", a + "int a = 2;\n");
+      write(dir, "B.txt", b + "long b = 2;\n");
+      git.add().addFilepattern(".").call();
+      git.rm().addFilepattern("A.txt").addFilepattern("B.java").call();
+      RevCommit commit = git.commit().setMessage("rename").call();
+
+      List<String> lines = new ArrayList<>();
+      try (BufferedReader br = Execute.execWithOutput(
+          "git show " + commit.name(), dir.getPath())) {
+        br.lines().forEach(lines::add);
+      }
+      Feature expected = new FeatureExtractor(null, null).extract(lines);
+      FeatureExtractor extractor = new FeatureExtractor(null, null);
+      extractor.begin(new Feature());
+      try (JGitDiff diff = new JGitDiff(git.getRepository())) {
+        diff.show(commit, extractor);
+      }
+      Feature actual = extractor.end();
+      assertEquals(expected.toStr(), actual.toStr());
+      assertEquals(1, actual.file);
+      assertEquals(1, actual.lineAdd);
+    } finally {
+      FileUtils.delete(dir, FileUtils.RECURSIVE);
+    }
+  }
+
+  /**
+   * Blobs of two commits and a missing one from one git cat-file
+   */
+  @Test
+  public void gitCatFile() throws Exception {
+    File dir = Files.createTempDirectory("crr-cat-file").toFile();
+    try (Git git = Git.init().setDirectory(dir).call()) {
+      write(dir, "A.java", "class A {}\n");
+      git.add().addFilepattern(".").call();
+      RevCommit first = git.commit().setMessage("add").call();
+      write(dir, "A.java", "class A { int a; }\n");
+      git.add().addFilepattern(".").call();
+      RevCommit second = git.commit().setMessage("change").call();
+      try (GitCatFile catFile = new GitCatFile(dir.getPath())) {
+        for (int i = 0; i < 100; i++) {
+          assertEquals("class A {}\n", new String(
+              catFile.read(first.name() + ":A.java"), StandardCharsets.UTF_8));
+          assertEquals("class A { int a; }\n", new String(
+              catFile.read(second.name() + ":A.java"), StandardCharsets.UTF_8));
+        }
+        assertEquals(null, catFile.read(second.name() + ":B.java"));
+      }
+    } finally {
+      FileUtils.delete(dir, FileUtils.RECURSIVE);
+    }
+  }
+
+  private static void write(File dir, String name, String content)
+      throws Exception {
+    Files.write(new File(dir, name).toPath(),
+        content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void gitLogParserParallel() throws Exception {
+    new GitLogParser()
+        .setThreads(Runtime.getRuntime().availableProcessors())
+        .parseAll();
+  }
+
+  @Test
+  public void gitLogParserIncremental() throws Exception {
+    new GitLogParser().setIncremental(true).parseAll();
+  }
+
+  @Test
+  public void gitLogParserClassified() throws Exception {
+    new GitLogParser().setClassifier(new Train().classifier()).parseAll();
+  }
+
   @Test
   public void changeByTime() throws Exception {
     new GitLogParser().setTaskType(TaskType.ChangeByTime).parseAll();
@@ -34,17 +160,112 @@ public class CrrTest {
     db.commit();
   }
 
+  /**
+   * A (file1, file2) table of an older pairs.db is moved to the blob store
+   */
+  @Test
+  public void dbMigrate() throws Exception {
+    File dir = Files.createTempDirectory("crr-db").toFile();
+    String projectsDir = Config.projectsDir;
+    Config.projectsDir = dir.getPath();
+    try {
+      Connection conn = DriverManager.getConnection(
+          "jdbc:sqlite:" + dir + "/pairs.db");
+      Statement sm = conn.createStatement();
+      sm.execute("create table alpha (file1 text, file2 text);");
+      for (int i = 0; i < 1500; i++)
+        sm.execute("insert into alpha values('a" + i % 100 + "', 'b" + i +
+            "');");
+      sm.close();
+      conn.close();
+
+      Db db = new Db();
+      assertEquals(Collections.singletonList("alpha"), db.pairTables());
+      PairStream pairs = db.pairs("alpha");
+      int i = 0;
+      for (; pairs.next(); i++) {
+        assertEquals("a" + i % 100, pairs.string(1));
+        assertEquals("b" + i, pairs.string(2));
+      }
+      pairs.close();
+      assertEquals(1500, i);
+      db.close();
+    } finally {
+      Config.projectsDir = projectsDir;
+      FileUtils.delete(dir, FileUtils.RECURSIVE);
+    }
+  }
+
   @Test
   public void readDb() throws Exception {
     Analyser analyser = new Analyser();
     analyser.compareAll();
   }
 
+  @Test
+  public void readDbParallel() throws Exception {
+    new Analyser()
+        .setThreads(Runtime.getRuntime().availableProcessors())
+        .compareAll();
+  }
+
   @Test
   public void moveToMysql() throws Exception {
     new Db().moveToMysql();
   }
 
+  /**
+   * Pairs of two projects moved to an in-memory H2 in MySQL mode, the last
+   * batch of them is not full
+   */
+  @Test
+  public void moveToMysqlH2() throws Exception {
+    File dir = Files.createTempDirectory("crr-mysql").toFile();
+    String projectsDir = Config.projectsDir;
+    List<String> projects = Config.projects;
+    Config.projectsDir = dir.getPath();
+    Config.projects = Arrays.asList("alpha", "beta");
+    String url = "jdbc:h2:mem:crr;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    Connection myConn = DriverManager.getConnection(url);
+    try {
+      Statement mySm = myConn.createStatement();
+      mySm.execute("create table project (id int auto_increment primary " +
+          "key, name varchar(255) unique);");
+      mySm.execute("create table pair (id int auto_increment primary key, " +
+          "file1 text, file2 text, pid int);");
+      Db db = new Db();
+      int[] rows = {2500, 3};
+      for (int p = 0; p < rows.length; p++) {
+        db.createTable(Config.projects.get(p));
+        for (int i = 0; i < rows[p]; i++)
+          db.addPairs(Config.projects.get(p), "a" + p + ' ' + i % 100,
+              "b" + p + ' ' + i);
+      }
+      db.commit();
+      db.moveToMysql(url);
+      db.close();
+
+      ResultSet rs = mySm.executeQuery("select pair.file1, pair.file2, " +
+          "project.name from pair join project on pair.pid = project.id " +
+          "order by pair.id;");
+      for (int p = 0; p < rows.length; p++)
+        for (int i = 0; i < rows[p]; i++) {
+          assertTrue(rs.next());
+          assertEquals("a" + p + ' ' + i % 100, rs.getString(1));
+          assertEquals("b" + p + ' ' + i, rs.getString(2));
+          assertEquals(Config.projects.get(p), rs.getString(3));
+        }
+      assertFalse(rs.next());
+      mySm.execute("drop all objects;");
+      mySm.close();
+    } finally {
+      myConn.close();
+      Config.projectsDir = projectsDir;
+      Config.projects = projects;
+      FileUtils.delete(dir, FileUtils.RECURSIVE);
+    }
+  }
+
   @Test
   public void mysql() throws Exception {
     new MysqlDb().read();